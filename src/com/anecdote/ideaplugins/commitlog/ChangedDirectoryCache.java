@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.vcsUtil.VcsUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the VCS and project attributes shared by all the changed files of a directory, once per directory.  The
+ * files of a large commit usually sit in comparatively few directories.  A cache holds on to what it has resolved, so
+ * its owner must discard it when the project structure or the VCS mappings change.
+ * <p/>
+ * The cache may be shared by threads resolving changes in parallel, each within a read action.
+ */
+class ChangedDirectoryCache
+{
+  private final Project _project;
+  private final Set<CommitLogEntry.Attribute> _attributes;
+  private final ConcurrentMap<String, ChangedDirectory> _directories =
+    new ConcurrentHashMap<String, ChangedDirectory>();
+  private final ConcurrentMap<String, String> _rootNames = new ConcurrentHashMap<String, String>();
+
+  /**
+   * @param attributes the attributes to resolve.  Those not given are left empty.
+   */
+  ChangedDirectoryCache(Project project, Set<CommitLogEntry.Attribute> attributes)
+  {
+    _project = project;
+    _attributes = attributes;
+  }
+
+  /**
+   * @return whether the attributes resolved by this cache include all the given attributes that are resolved per
+   *         directory.  The new revision is looked up per file once the commit is done, so is not resolved here.
+   */
+  boolean resolves(Set<CommitLogEntry.Attribute> attributes)
+  {
+    for (final CommitLogEntry.Attribute attribute : attributes) {
+      if (attribute != CommitLogEntry.Attribute.NEW_REVISION && !_attributes.contains(attribute)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the attributes of the directory holding the given file.
+   */
+  ChangedDirectory getDirectoryOf(FilePath filePath)
+  {
+    final String key = getKey(filePath);
+    ChangedDirectory result = _directories.get(key);
+    if (result == null) {
+      // two threads may both resolve a directory; they resolve it to the same attributes
+      result = resolve(filePath, filePath.getParentPath());
+      final ChangedDirectory existing = _directories.putIfAbsent(key, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the attributes of the directory with the given path, separated by '/', if they have already been resolved,
+   *         or else null.  Nothing is resolved.
+   */
+  @Nullable
+  ChangedDirectory getResolvedDirectory(String directoryPath)
+  {
+    return _directories.get(directoryPath);
+  }
+
+  /**
+   * Forgets every directory except those with the given keys, as returned by {@link #getKey}.
+   */
+  void retainDirectories(Set<String> keys)
+  {
+    _directories.keySet().retainAll(keys);
+  }
+
+  /**
+   * @return the key under which the directory of the given file is cached.
+   */
+  static String getKey(FilePath filePath)
+  {
+    final FilePath directory = filePath.getParentPath();
+    return directory != null ? directory.getPath() : filePath.getPath();
+  }
+
+  private ChangedDirectory resolve(FilePath filePath, @Nullable FilePath directory)
+  {
+    final AbstractVcs vcs = VcsUtil.getVcsFor(_project, filePath);
+    if (vcs == null) {
+      return ChangedDirectory.UNVERSIONED;
+    }
+    final String path = directory != null ? directory.getIOFile().getPath().replace(File.separatorChar, '/') : "";
+    final VirtualFile vcsRoot = _attributes.contains(CommitLogEntry.Attribute.VCS_ROOT) ?
+                                VcsUtil.getVcsRootFor(_project, filePath) : null;
+    final String vcsRootName = vcsRoot != null ? internRootName(vcsRoot.getPresentableName()) : "";
+    final String packageName = _attributes.contains(CommitLogEntry.Attribute.PACKAGE_NAME) ?
+                               getPackageName(filePath) : null;
+    final String pathFromRoot = _attributes.contains(CommitLogEntry.Attribute.PATH_FROM_ROOT) ?
+                                getPathFromRoot(vcsRoot, directory) : "";
+    return new ChangedDirectory(path, vcs, vcsRoot, vcsRootName, packageName, pathFromRoot);
+  }
+
+  /**
+   * @return a single instance of the given root name, shared by all the directories under the root.
+   */
+  private String internRootName(String rootName)
+  {
+    final String existing = _rootNames.putIfAbsent(rootName, rootName);
+    return existing != null ? existing : rootName;
+  }
+
+  private String getPackageName(FilePath filePath)
+  {
+    final VirtualFile parent = filePath.getVirtualFileParent();
+    if (parent == null) {
+      return "";
+    }
+    final ProjectFileIndex projectFileIndex = ProjectRootManager.getInstance(_project).getFileIndex();
+    return projectFileIndex.getPackageNameByDirectory(parent);
+  }
+
+  /**
+   * @return the path of the directory relative to the VCS root, separated by '/'.
+   */
+  private static String getPathFromRoot(@Nullable VirtualFile vcsRoot, @Nullable FilePath directory)
+  {
+    final List<String> names = new ArrayList<String>();
+    int length = 0;
+    for (FilePath path = directory; path != null && (vcsRoot == null || !vcsRoot.equals(path.getVirtualFile()));
+         path = path.getParentPath()) {
+      final String name = path.getName();
+      names.add(name);
+      length += name.length() + 1;
+    }
+    final StringBuilder result = new StringBuilder(length);
+    for (int i = names.size() - 1; i >= 0; i--) {
+      result.append(names.get(i));
+      if (i > 0) {
+        result.append('/');
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * The attributes of a directory holding changed files.
+   */
+  static class ChangedDirectory
+  {
+    static final ChangedDirectory UNVERSIONED = new ChangedDirectory("", null, null, "", null, "");
+
+    private final String _path;
+    @Nullable
+    private final AbstractVcs _vcs;
+    @Nullable
+    private final VirtualFile _vcsRoot;
+    private final String _vcsRootName;
+    @Nullable
+    private final String _packageName;
+    private final String _pathFromRoot;
+
+    ChangedDirectory(String path, @Nullable AbstractVcs vcs, @Nullable VirtualFile vcsRoot, String vcsRootName,
+                     @Nullable String packageName, String pathFromRoot)
+    {
+      _path = path;
+      _vcs = vcs;
+      _vcsRoot = vcsRoot;
+      _vcsRootName = vcsRootName;
+      _packageName = packageName;
+      _pathFromRoot = pathFromRoot;
+    }
+
+    /**
+     * @return the path of the directory, separated by '/'.
+     */
+    String getPath()
+    {
+      return _path;
+    }
+
+    /**
+     * @return the VCS the directory is under, or null if it is not under version control.
+     */
+    @Nullable
+    AbstractVcs getVcs()
+    {
+      return _vcs;
+    }
+
+    /**
+     * @return the VCS root the directory is under, or null if the VCS_ROOT attribute was not resolved.
+     */
+    @Nullable
+    VirtualFile getVcsRoot()
+    {
+      return _vcsRoot;
+    }
+
+    /**
+     * @return the presentable name of the VCS root, which need not be unique, or an empty string if the VCS_ROOT
+     *         attribute was not resolved.
+     */
+    String getVcsRootName()
+    {
+      return _vcsRootName;
+    }
+
+    @Nullable
+    String getPackageName()
+    {
+      return _packageName;
+    }
+
+    String getPathFromRoot()
+    {
+      return _pathFromRoot;
+    }
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * An append-only archive of the commit logs generated for a project, kept in the IDE's system directory so that logs
+ * outlive their tabs and the IDE session.
+ * <p/>
+ * Each log is appended to a data file, and its offset, length and date to an index file of fixed size records.  The
+ * log with a given sequence number is found by reading a single index record, and the logs in a date range by a
+ * binary search of the index.  For that, the date indexed is never earlier than that of the log before it: a log
+ * generated before, but appended after, a later one is indexed at the later date.  Both files are read through memory
+ * mapping, so that only the logs read are paged in.  A log is indexed only once it has been written in full, so a log
+ * cut short by a crash is never read, and is overwritten by the next log appended.  The data file is mapped whole,
+ * which limits the archive to 2GB of logs, beyond which no more logs are appended.
+ * <p/>
+ * The text of each log is deflated by a {@link CommitLogCompressor}, whose dictionary is appended to a dictionary
+ * file the first time it is used, so that logs generated with earlier templates can still be read.  Each log records
+ * the position of its dictionary in that file, as the checksum a compressed log carries need not be unique, and is
+ * only used to check that the right dictionary was found.
+ */
+class CommitLogArchive
+{
+  private static final String DATA_FILE_NAME = "commitlogs.dat";
+  private static final String INDEX_FILE_NAME = "commitlogs.idx";
+  private static final String DICTIONARY_FILE_NAME = "commitlogs.dict";
+  // offset, length and date
+  private static final int INDEX_RECORD_SIZE = 8 + 4 + 8;
+  private static final int INDEX_DATE_OFFSET = 8 + 4;
+  // the most a mapping can hold
+  private static final long MAX_DATA_LENGTH = Integer.MAX_VALUE;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File _directory;
+  // by dictionary sequence number, which is the order of the dictionaries in the dictionary file
+  private final List<CommitLogCompressor> _compressors = new ArrayList<CommitLogCompressor>();
+  private RandomAccessFile _data;
+  private RandomAccessFile _index;
+  private int _size;
+  private long _dataLength;
+  // the date indexed for the last log, which the date indexed for the next may not be earlier than
+  private long _lastIndexedTime;
+  // mappings of the files as they were when last read, or null if logs have been appended since
+  private MappedByteBuffer _dataMap;
+  private MappedByteBuffer _indexMap;
+
+  CommitLogArchive(File directory)
+  {
+    _directory = directory;
+  }
+
+  /**
+   * @return the directory holding the archive of the given project.
+   */
+  static File getArchiveDirectory(Project project)
+  {
+    return new File(new File(PathManager.getSystemPath(), "commitlog"), project.getLocationHash());
+  }
+
+  /**
+   * Appends a commit log to the archive, its text already compressed with the given compressor.
+   *
+   * @return the sequence number of the log.
+   */
+  synchronized int append(Date date, @Nullable String changeListName, boolean failed, List<String> rootNames,
+                          int fileCount, byte[] compressedText, CommitLogCompressor compressor) throws IOException
+  {
+    open();
+    int dictionarySequence = getDictionarySequence(compressor);
+    if (dictionarySequence < 0) {
+      dictionarySequence = appendDictionary(compressor);
+    }
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(compressedText.length + 256);
+    final DataOutputStream out = new DataOutputStream(buffer);
+    out.writeLong(date.getTime());
+    writeString(out, changeListName != null ? changeListName : "");
+    out.writeBoolean(failed);
+    out.writeInt(fileCount);
+    out.writeInt(rootNames.size());
+    for (final String rootName : rootNames) {
+      writeString(out, rootName);
+    }
+    // the text is deflated to the end of the record
+    out.writeInt(dictionarySequence);
+    out.write(compressedText);
+    out.close();
+    if (_dataLength + buffer.size() > MAX_DATA_LENGTH) {
+      throw new IOException("Commit log archive " + _directory + " is full, as it cannot grow beyond " +
+                            MAX_DATA_LENGTH / (1024 * 1024) + "MB");
+    }
+    final long offset = _dataLength;
+    _data.seek(offset);
+    _data.write(buffer.toByteArray());
+    _index.seek((long)_size * INDEX_RECORD_SIZE);
+    _index.writeLong(offset);
+    _index.writeInt(buffer.size());
+    _lastIndexedTime = Math.max(date.getTime(), _lastIndexedTime);
+    _index.writeLong(_lastIndexedTime);
+    _dataLength += buffer.size();
+    _dataMap = null;
+    _indexMap = null;
+    return _size++;
+  }
+
+  /**
+   * @return the number of logs in the archive.
+   */
+  synchronized int size() throws IOException
+  {
+    open();
+    return _size;
+  }
+
+  /**
+   * @return the log with the given sequence number.  Its text is only decoded when asked for.
+   */
+  synchronized ArchivedCommitLog read(int sequence) throws IOException
+  {
+    open();
+    if (sequence < 0 || sequence >= _size) {
+      throw new IndexOutOfBoundsException("No commit log " + sequence + " in an archive of " + _size);
+    }
+    map();
+    final int indexOffset = sequence * INDEX_RECORD_SIZE;
+    final int offset = (int)_indexMap.getLong(indexOffset);
+    final int length = _indexMap.getInt(indexOffset + 8);
+    final ByteBuffer record = _dataMap.duplicate();
+    record.position(offset);
+    record.limit(offset + length);
+    return new ArchivedCommitLog(this, sequence, record.slice());
+  }
+
+  /**
+   * @return the logs indexed from the given date up to but excluding the other, in sequence.
+   */
+  synchronized List<ArchivedCommitLog> read(Date from, Date to) throws IOException
+  {
+    final int start = findFirst(from.getTime());
+    final int end = findFirst(to.getTime());
+    final List<ArchivedCommitLog> result = new ArrayList<ArchivedCommitLog>(Math.max(end - start, 0));
+    for (int sequence = start; sequence < end; sequence++) {
+      result.add(read(sequence));
+    }
+    return result;
+  }
+
+  /**
+   * @return the sequence number of the first log indexed at or after the given time, or the size of the archive if
+   *         there is none.
+   */
+  private int findFirst(long time) throws IOException
+  {
+    open();
+    map();
+    int low = 0;
+    int high = _size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (_indexMap.getLong(middle * INDEX_RECORD_SIZE + INDEX_DATE_OFFSET) < time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the sequence number of the dictionary of the given compressor, or -1 if no log has been compressed with
+   *         it.
+   */
+  private int getDictionarySequence(CommitLogCompressor compressor)
+  {
+    for (int i = _compressors.size() - 1; i >= 0; i--) {
+      final CommitLogCompressor recorded = _compressors.get(i);
+      if (recorded == compressor || recorded.getDictionaryId() == compressor.getDictionaryId() &&
+                                    Arrays.equals(recorded.getDictionary(), compressor.getDictionary())) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the compressor with the given dictionary sequence number, or null if there is none.
+   */
+  @Nullable
+  private synchronized CommitLogCompressor getCompressor(int dictionarySequence)
+  {
+    return dictionarySequence >= 0 && dictionarySequence < _compressors.size() ? _compressors.get(dictionarySequence)
+                                                                                : null;
+  }
+
+  synchronized void close()
+  {
+    _compressors.clear();
+    _dataMap = null;
+    _indexMap = null;
+    closeQuietly(_data);
+    closeQuietly(_index);
+    _data = null;
+    _index = null;
+  }
+
+  private void open() throws IOException
+  {
+    if (_data != null) {
+      return;
+    }
+    if (!_directory.isDirectory() && !_directory.mkdirs()) {
+      throw new IOException("Could not create commit log archive directory " + _directory);
+    }
+    _data = new RandomAccessFile(new File(_directory, DATA_FILE_NAME), "rw");
+    try {
+      _index = new RandomAccessFile(new File(_directory, INDEX_FILE_NAME), "rw");
+      // drop any record cut short by a crash
+      _size = (int)(_index.length() / INDEX_RECORD_SIZE);
+      _index.setLength((long)_size * INDEX_RECORD_SIZE);
+      _dataLength = 0;
+      _lastIndexedTime = 0;
+      if (_size > 0) {
+        _index.seek((long)(_size - 1) * INDEX_RECORD_SIZE);
+        _dataLength = _index.readLong() + _index.readInt();
+        _lastIndexedTime = _index.readLong();
+      }
+      if (_data.length() < _dataLength) {
+        throw new IOException("Commit log archive " + _directory + " is corrupt");
+      }
+      _data.setLength(_dataLength);
+      loadDictionaries();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private File getDictionaryFile()
+  {
+    return new File(_directory, DICTIONARY_FILE_NAME);
+  }
+
+  private void loadDictionaries() throws IOException
+  {
+    final File file = getDictionaryFile();
+    if (!file.exists()) {
+      return;
+    }
+    long validLength = 0;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        final byte[] dictionary;
+        try {
+          dictionary = new byte[in.readInt()];
+          in.readFully(dictionary);
+        } catch (EOFException e) {
+          break;
+        }
+        validLength += 4 + dictionary.length;
+        _compressors.add(new CommitLogCompressor(dictionary));
+      }
+    } finally {
+      in.close();
+    }
+    if (file.length() > validLength) {
+      // drop a dictionary cut short by a crash, which no log can have been indexed with
+      final RandomAccessFile dictionaries = new RandomAccessFile(file, "rw");
+      try {
+        dictionaries.setLength(validLength);
+      } finally {
+        dictionaries.close();
+      }
+    }
+  }
+
+  /**
+   * Records the dictionary of the given compressor, ahead of the first log compressed with it.
+   *
+   * @return the sequence number of the dictionary.
+   */
+  private int appendDictionary(CommitLogCompressor compressor) throws IOException
+  {
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(getDictionaryFile(), true));
+    try {
+      out.writeInt(compressor.getDictionary().length);
+      out.write(compressor.getDictionary());
+    } finally {
+      out.close();
+    }
+    _compressors.add(compressor);
+    return _compressors.size() - 1;
+  }
+
+  private void map() throws IOException
+  {
+    if (_dataMap == null) {
+      _dataMap = _data.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, _dataLength);
+    }
+    if (_indexMap == null) {
+      _indexMap = _index.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long)_size * INDEX_RECORD_SIZE);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException
+  {
+    final byte[] bytes = string.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    final int length = buffer.getInt();
+    final byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static void closeQuietly(@Nullable Closeable closeable)
+  {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * A commit log read from the archive.  The text stays compressed in the mapped archive until asked for.
+   */
+  static class ArchivedCommitLog
+  {
+    private final CommitLogArchive _archive;
+    private final int _sequence;
+    private final Date _date;
+    private final String _changeListName;
+    private final boolean _failed;
+    private final int _fileCount;
+    private final List<String> _rootNames;
+    private final ByteBuffer _text;
+
+    private ArchivedCommitLog(CommitLogArchive archive, int sequence, ByteBuffer record)
+    {
+      _archive = archive;
+      _sequence = sequence;
+      _date = new Date(record.getLong());
+      _changeListName = readString(record);
+      _failed = record.get() != 0;
+      _fileCount = record.getInt();
+      final int rootCount = record.getInt();
+      final List<String> rootNames = new ArrayList<String>(rootCount);
+      for (int i = 0; i < rootCount; i++) {
+        rootNames.add(readString(record));
+      }
+      _rootNames = Collections.unmodifiableList(rootNames);
+      _text = record.slice();
+    }
+
+    int getSequence()
+    {
+      return _sequence;
+    }
+
+    Date getDate()
+    {
+      return _date;
+    }
+
+    String getChangeListName()
+    {
+      return _changeListName;
+    }
+
+    boolean isFailed()
+    {
+      return _failed;
+    }
+
+    int getFileCount()
+    {
+      return _fileCount;
+    }
+
+    List<String> getRootNames()
+    {
+      return _rootNames;
+    }
+
+    String getText() throws IOException
+    {
+      final ByteBuffer text = _text.duplicate();
+      final int dictionarySequence = text.getInt();
+      final byte[] data = new byte[text.remaining()];
+      text.get(data);
+      final int dictionaryId = CommitLogCompressor.getDictionaryId(data);
+      final CommitLogCompressor compressor = _archive.getCompressor(dictionarySequence);
+      if (compressor == null) {
+        throw new IOException("Missing dictionary of commit log " + _sequence);
+      }
+      // a log whose dictionary held no text records no checksum
+      if (dictionaryId != 0 && compressor.getDictionaryId() != dictionaryId) {
+        throw new IOException("Dictionary of commit log " + _sequence + " does not match its checksum");
+      }
+      return compressor.decompress(data);
+    }
+  }
+}
@@ -16,18 +16,12 @@
 package com.anecdote.ideaplugins.commitlog;
 
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ProjectFileIndex;
-import com.intellij.openapi.roots.ProjectRootManager;
-import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.changes.*;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.vcsUtil.VcsUtil;
-import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.text.DateFormat;
+import java.io.IOException;
 import java.util.*;
 
 @SuppressWarnings(
@@ -35,56 +29,17 @@ import java.util.*;
    "StringContatenationInLoop"})
 class CommitLogBuilder
 {
-  private static final String TIME_PLACEHOLDER = "TIME";
-  private static final String DATE_PLACEHOLDER = "DATE";
-  private static final String DATE_TIME_PLACEHOLDER = "DATE_TIME";
-  private static final String FILE_COUNT_PLACEHOLDER = "FILE_COUNT";
-  private static final String ROOT_COUNT_PLACEHOLDER = "ROOT_COUNT";
-  private static final String ROOT_LIST_PLACEHOLDER = "ROOT_LIST";
-  private static final String COMMIT_MESSAGE_PLACEHOLDER = "COMMIT_MESSAGE";
-
-  private static final String ROOTS_SECTION_START_PLACEHOLDER = "ROOTS_SECTION";
-  private static final String ROOTS_SECTION_END_PLACEHOLDER = "/ROOTS_SECTION";
-  private static final String ROOT_ENTRY_START_PLACEHOLDER = "ROOT_ENTRY";
-  private static final String ROOT_ENTRY_END_PLACEHOLDER = "/ROOT_ENTRY";
-
-  private static final String MODIFIED_FILES_SECTION_START_PLACEHOLDER = "MODIFIED_FILES";
-  private static final String ADDED_FILES_SECTION_START_PLACEHOLDER = "ADDED_FILES";
-  private static final String DELETED_FILES_SECTION_START_PLACEHOLDER = "DELETED_FILES";
-  private static final String ALL_FILES_BY_TYPE_SECTION_START_PLACEHOLDER = "ALL_FILES_BY_TYPE";
-  private static final String ALL_FILES_SECTION_START_PLACEHOLDER = "ALL_FILES";
-  private static final String MODIFIED_FILES_SECTION_END_PLACEHOLDER = "/MODIFIED_FILES";
-  private static final String ADDED_FILES_SECTION_END_PLACEHOLDER = "/ADDED_FILES";
-  private static final String DELETED_FILES_SECTION_END_PLACEHOLDER = "/DELETED_FILES";
-  private static final String ALL_FILES_BY_TYPE_SECTION_END_PLACEHOLDER = "ALL_FILES_BY_TYPE";
-  private static final String ALL_FILES_SECTION_END_PLACEHOLDER = "/ALL_FILES";
-
-  private static final String FILE_ENTRY_START_PLACEHOLDER = "FILE_ENTRY";
-  private static final String FILE_ENTRY_END_PLACEHOLDER = "/FILE_ENTRY";
-  private static final String FILE_NAME_PLACEHOLDER = "FILE_NAME";
-  private static final String FILE_PATH_PLACEHOLDER = "FILE_PATH";
-  private static final String FILE_ACTION_PLACEHOLDER = "FILE_ACTION";
-  private static final String ROOT_NAME_PLACEHOLDER = "ROOT_NAME";
-  private static final String PACKAGE_NAME_PLACEHOLDER = "PACKAGE_NAME";
-  private static final String PACKAGE_PATH_PLACEHOLDER = "PACKAGE_PATH";
-  private static final String PATH_FROM_ROOT_PLACEHOLDER = "PATH_FROM_ROOT";
-  private static final String OLD_REVISION_NUMBER_PLACEHOLDER = "OLD_REVISION_NUMBER";
-  private static final String NEW_REVISION_NUMBER_PLACEHOLDER = "NEW_REVISION_NUMBER";
-  private static final String CHANGE_SYMBOL_PLACEHOLDER = "CHANGE_SYMBOL";
-
-  private int _fileCount;
-  private final Map<String, Map<Change.Type, Collection<CommitLogEntry>>> _commitLogEntriesByRootAndType =
-    new TreeMap<String, Map<Change.Type, Collection<CommitLogEntry>>>();
-  private Map<Change.Type, Collection<CommitLogEntry>> _commitLogEntriesByType =
-    new EnumMap<Change.Type, Collection<CommitLogEntry>>(Change.Type.class);
-  private Map<String, Collection<CommitLogEntry>> _commitLogEntriesByRootAndPath =
-    new HashMap<String, Collection<CommitLogEntry>>();
-  private Collection<CommitLogEntry> _commitLogEntries = new TreeSet<CommitLogEntry>();
+  private final CommitLogEntryStore _entries = new CommitLogEntryStore();
   private String _commitMessage;
-  private final String _commitLogTemplate;
+  private final CompiledCommitLogTemplate _commitLogTemplate;
   private String changeListName;
+  @Nullable
+  private IssueIdMatcher _issueIdMatcher;
+  private boolean _findIssueIdsInFilePaths;
+  @Nullable
+  private String _basePath;
 
-  CommitLogBuilder(String commitLogTemplate, String commitMessage)
+  CommitLogBuilder(CompiledCommitLogTemplate commitLogTemplate, String commitMessage)
   {
     _commitLogTemplate = commitLogTemplate;
     _commitMessage = commitMessage;
@@ -92,481 +47,254 @@ class CommitLogBuilder
 
   public void addCommitLogEntry(CommitLogEntry commitLogEntry)
   {
-    String rootName = commitLogEntry.getVcsRootName();
-    getCommitLogEntries(rootName, commitLogEntry.getChangeType()).add(commitLogEntry);
-    getCommitLogEntries(null, commitLogEntry.getChangeType()).add(commitLogEntry);
-    _commitLogEntries.add(commitLogEntry);
-    getCommitLogEntriesByRoot(rootName).add(commitLogEntry);
-    _fileCount++;
+    _entries.add(commitLogEntry);
   }
 
-  public void removeUncommittedEntries()
+  /**
+   * Sets the new revision of the entry at the given index, sharing one instance of each distinct revision string
+   * between entries.
+   */
+  void setNewVersion(int index, @Nullable String newVersion)
   {
-    removeUncommittedEntriesByRoot();
-    removeUncommittedEntriesByType(_commitLogEntriesByType);
+    _entries.get(index).setNewVersion(_entries.intern(newVersion));
   }
 
-  private void removeUncommittedEntriesByRoot()
+  /**
+   * Records that the new revision of the entry at the given index could not be found.  The entry is kept in the log,
+   * as it may well have been committed.
+   */
+  void setNewVersionUnresolved(int index)
   {
-    for (Iterator<Map.Entry<String, Map<Change.Type, Collection<CommitLogEntry>>>> entriesByRootIterator =
-           _commitLogEntriesByRootAndType.entrySet().iterator(); entriesByRootIterator.hasNext();) {
-      Map.Entry<String, Map<Change.Type, Collection<CommitLogEntry>>> rootEntry = entriesByRootIterator.next();
-      Map<Change.Type, Collection<CommitLogEntry>> entriesForRootByType = rootEntry.getValue();
-      _fileCount -= removeUncommittedEntriesByType(entriesForRootByType);
-      if (entriesForRootByType.isEmpty()) {
-        entriesByRootIterator.remove();
-      }
-    }
+    _entries.get(index).setNewVersionUnresolved();
   }
 
-  private static int removeUncommittedEntriesByType(Map<Change.Type, Collection<CommitLogEntry>> entriesForRootByType)
+  /**
+   * Records whether the entry at the given index was committed.  Only committed entries are listed in the log, and
+   * entries are taken to be committed until recorded otherwise.
+   */
+  void setCommitted(int index, boolean committed)
   {
-    int result = 0;
-    for (Iterator<Map.Entry<Change.Type, Collection<CommitLogEntry>>> entriesByTypeIterator = entriesForRootByType
-      .entrySet().iterator(); entriesByTypeIterator.hasNext();) {
-      Map.Entry<Change.Type, Collection<CommitLogEntry>> entry = entriesByTypeIterator.next();
-      Collection<CommitLogEntry> commitLogEntries = entry.getValue();
-      for (Iterator<CommitLogEntry> commitLogEntryIterator = commitLogEntries.iterator();
-           commitLogEntryIterator.hasNext();) {
-        CommitLogEntry commitLogEntry = commitLogEntryIterator.next();
-        if (commitLogEntry.getOldVersion() == null ?
-            commitLogEntry.getNewVersion() == null :
-            commitLogEntry.getOldVersion().equals(commitLogEntry.getNewVersion())) {
-          CommitLogProjectComponent.log(
-            "Removing Commit log entry for " + commitLogEntry.getFilePath() + " : file not committed");
-          commitLogEntryIterator.remove();
-          result++;
-        }
-
-//        if (changeListManager.getChange(commitLogEntry.getFilePath()) != null) {
-//          // still exists, remove this as it wasn't done
-//          commitLogEntryIterator.remove();
-//          result++;
-//        }
-      }
-      if (commitLogEntries.isEmpty()) {
-        entriesByTypeIterator.remove();
-      }
-    }
-    return result;
+    _entries.setCommitted(index, committed);
   }
 
-  private Collection<CommitLogEntry> getCommitLogEntries(String root, @Nullable Change.Type type)
+  /**
+   * @return the number of entries, whether committed or not, which may be iterated with {@link #getCommitLogEntry}.
+   */
+  int getCommitLogEntryCount()
   {
-    if (type != null) {
-      Map<Change.Type, Collection<CommitLogEntry>> byRoot = getCommitLogEntriesByTypeByRoot(root);
-      Collection<CommitLogEntry> result = byRoot.get(type);
-      if (result == null) {
-        result = new HashSet<CommitLogEntry>();
-        byRoot.put(type, result);
-      }
-      return result;
-    } else {
-      return root != null ? _commitLogEntriesByRootAndPath.get(root) : _commitLogEntries;
-    }
+    return _entries.size();
   }
 
-  protected Map<Change.Type, Collection<CommitLogEntry>> getCommitLogEntriesByTypeByRoot(String root)
+  CommitLogEntry getCommitLogEntry(int index)
   {
-    Map<Change.Type, Collection<CommitLogEntry>> byRoot = root != null ? _commitLogEntriesByRootAndType.get(root)
-                                                                       : _commitLogEntriesByType;
-    if (byRoot == null) {
-      byRoot = new EnumMap<Change.Type, Collection<CommitLogEntry>>(Change.Type.class);
-      _commitLogEntriesByRootAndType.put(root, byRoot);
-    }
-    return byRoot;
+    return _entries.get(index);
   }
 
-  protected Collection<CommitLogEntry> getCommitLogEntriesByRoot(String root)
+  protected String buildCommitLog(Date date)
   {
-    Collection<CommitLogEntry> byRoot = root != null ? _commitLogEntriesByRootAndPath.get(root)
-                                                     : _commitLogEntries;
-    if (root != null && byRoot == null) {
-      byRoot = new TreeSet<CommitLogEntry>();
-      _commitLogEntriesByRootAndPath.put(root, byRoot);
-    }
-    return byRoot;
+    final StringBuilder result = new StringBuilder(500);
+    buildCommitLog(date, result);
+    return result.toString();
   }
 
-  @SuppressWarnings({"AssignmentToForLoopParameter"})
-  protected String buildCommitLog(Date date) throws CommitLogTemplateParser.TextTemplateParserException
+  /**
+   * Renders the commit log into the given buffer, which can be used directly as the text of a document.
+   */
+  protected void buildCommitLog(Date date, StringBuilder result)
   {
-    CommitLogProjectComponent.log("CommitLogBuilder::buildCommitLog() Entered");
-    final String templateText = _commitLogTemplate;
-    final CommitLogTemplateParser parser = new CommitLogTemplateParser();
-    final List<CommitLogTemplateParser.TextTemplateNode> textTemplateNodes = parser.parseTextTemplate(templateText);
-    if (textTemplateNodes.isEmpty()) {
-      CommitLogProjectComponent.log("ERROR : Parsed template is empty!");
+    try {
+      buildCommitLog(date, (Appendable)result);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // cannot happen - StringBuilder does not throw IOException
     }
-    final StringBuilder result = new StringBuilder(500);
-    for (int i = 0; i < textTemplateNodes.size(); i++) {
-      final CommitLogTemplateParser.TextTemplateNode textTemplateNode = textTemplateNodes.get(i);
-      String text = textTemplateNode.getText();
-      if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
-        if (text.equals(ROOTS_SECTION_START_PLACEHOLDER)) {
-          i++;
-          CommitLogSection logSection;
-          final List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(textTemplateNodes, i);
-          logSection = buildCommitLogRootsSection(followingNodes, new Date());
-          i += logSection.getUsedNodes() - 1;
-          text = logSection.getText();
-        } else if (isFileSectionStartPlaceholder(text)) {
-          i++;
-          final List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(textTemplateNodes, i);
-          CommitLogSection logSection = buildCommitLogFilesSection(followingNodes, null, text);
-          i += logSection.getUsedNodes() - 1;
-          text = logSection.getText();
-        }
-      } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-        text = processCommonPlaceholders(text, date);
-      }
-      result.append(text);
-    }
-    return result.toString();
   }
 
-  private static boolean isFilesSectionEndPlaceholder(String text)
+  /**
+   * Renders the commit log straight to the given output, without building the log, or any part of it, as a string
+   * first.
+   */
+  protected void buildCommitLog(Date date, Appendable out) throws IOException
   {
-    return DELETED_FILES_SECTION_END_PLACEHOLDER.equals(text) ||
-           MODIFIED_FILES_SECTION_END_PLACEHOLDER.equals(text) ||
-           ADDED_FILES_SECTION_END_PLACEHOLDER.equals(text) ||
-           ALL_FILES_BY_TYPE_SECTION_END_PLACEHOLDER.equals(text) ||
-           ALL_FILES_SECTION_END_PLACEHOLDER.equals(text);
+    CommitLogProjectComponent.log("CommitLogBuilder::buildCommitLog() Entered");
+    final RenderContext context = new RenderContext(this, date);
+    appendNodes(out, 0, _commitLogTemplate.getNodeCount(), context);
   }
 
-  private static boolean isFileSectionStartPlaceholder(String text)
+  /**
+   * Appends the rendered template nodes from start (inclusive) to end (exclusive), rendering each block placeholder
+   * found and skipping directly to the node that closes it.
+   */
+  @SuppressWarnings({"AssignmentToForLoopParameter"})
+  private void appendNodes(Appendable result, int start, int end, RenderContext context) throws IOException
   {
-    return DELETED_FILES_SECTION_START_PLACEHOLDER.equals(text) ||
-           MODIFIED_FILES_SECTION_START_PLACEHOLDER.equals(text) ||
-           ADDED_FILES_SECTION_START_PLACEHOLDER.equals(text) ||
-           ALL_FILES_BY_TYPE_SECTION_START_PLACEHOLDER.equals(text) ||
-           ALL_FILES_SECTION_START_PLACEHOLDER.equals(text);
+    final CompiledCommitLogTemplate template = _commitLogTemplate;
+    for (int i = start; i < end; i++) {
+      final CommitLogPlaceholder placeholder = template.getPlaceholder(i);
+      if (placeholder == null) {
+        result.append(template.getText(i));
+      } else if (placeholder.isBlock()) {
+        final int blockEnd = template.getBlockEnd(i);
+        appendBlock(result, placeholder, i + 1, blockEnd, context);
+        i = blockEnd;
+      } else {
+        result.append(placeholder.getValue(context));
+      }
+    }
   }
 
-  private String processCommonPlaceholders(String nodeText, Date date)
+  private void appendBlock(Appendable result, CommitLogPlaceholder block, int start, int end,
+                           RenderContext context) throws IOException
   {
-    if (nodeText.equals(TIME_PLACEHOLDER)) {
-      nodeText = DateFormat.getTimeInstance().format(date);
-    } else if (nodeText.equals(DATE_PLACEHOLDER)) {
-      nodeText = DateFormat.getDateInstance().format(date);
-    } else if (nodeText.equals(DATE_TIME_PLACEHOLDER)) {
-      nodeText = DateFormat.getDateTimeInstance().format(date);
-    } else if (nodeText.equals(FILE_COUNT_PLACEHOLDER)) {
-      nodeText = String.valueOf(_fileCount);
-    } else if (nodeText.equals(ROOT_COUNT_PLACEHOLDER)) {
-      nodeText = String.valueOf(_commitLogEntriesByRootAndType.size());
-    } else if (nodeText.equals(ROOT_LIST_PLACEHOLDER)) {
-      nodeText = toString(_commitLogEntriesByRootAndType.keySet());
-    } else if (nodeText.equals(COMMIT_MESSAGE_PLACEHOLDER)) {
-      nodeText = _commitMessage;
-    } else {
-      nodeText = "Illegal Placeholder : " + CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL + nodeText +
-                 CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL;
+    switch (block) {
+      case ROOTS_SECTION:
+        if (_entries.getRootCount() > 0) {
+          appendNodes(result, start, end, context);
+        }
+        break;
+      case ROOT_ENTRY:
+        for (int root = 0; root < _entries.getRootCount(); root++) {
+          context.enterRoot(root, _entries.getRootName(root), _entries.getFileCount(root));
+          appendNodes(result, start, end, context);
+        }
+        context.exitRoot(_entries.getFileCount());
+        break;
+      case ALL_FILES_BY_TYPE:
+        appendFilesSection(result, start, end, _entries.getEntriesInTypeOrder(context.getRoot()), context);
+        break;
+      case ISSUE_ENTRY:
+        for (final String issueId : context.getIssueIds()) {
+          context.enterIssue(issueId);
+          appendNodes(result, start, end, context);
+        }
+        context.exitIssue();
+        break;
+      case FILE_ENTRY:
+        final CommitLogEntryStore.Range entries = context.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+          context.enterEntry(entries.get(i));
+          appendNodes(result, start, end, context);
+        }
+        context.exitEntry();
+        break;
+      default:
+        appendFilesSection(result, start, end, _entries.getEntries(context.getRoot(), block.getChangeType()), context);
     }
-    return nodeText;
   }
 
-  private CommitLogSection buildCommitLogFilesSection(List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                                      @Nullable String rootName, String sectionPlaceholder
-  )
+  private void appendFilesSection(Appendable result, int start, int end, CommitLogEntryStore.Range entries,
+                                  RenderContext context) throws IOException
   {
-    CommitLogSection logSection;
-    if (sectionPlaceholder.equals(ALL_FILES_BY_TYPE_SECTION_START_PLACEHOLDER)) {
-      logSection = buildCommitLogFilesSection(nodes, rootName, true);
-    } else if (sectionPlaceholder.equals(ALL_FILES_SECTION_START_PLACEHOLDER)) {
-      logSection = buildCommitLogFilesSection(nodes, rootName, false);
-    } else {
-      Change.Type type = null;
-      if (sectionPlaceholder.equals(ADDED_FILES_SECTION_START_PLACEHOLDER)) {
-        type = Change.Type.NEW;
-      } else if (sectionPlaceholder.equals(DELETED_FILES_SECTION_START_PLACEHOLDER)) {
-        type = Change.Type.DELETED;
-      } else if (sectionPlaceholder.equals(MODIFIED_FILES_SECTION_START_PLACEHOLDER)) {
-        type = Change.Type.MODIFICATION;
-      }
-      logSection = type != null ? buildCommitLogFilesSection(nodes, rootName, type) :
-                   new CommitLogSection("Unknown placeholder in template : $" + sectionPlaceholder + '$', 1);
+    if (!entries.isEmpty()) {
+      final int fileCount = context.getFileCount();
+      context.enterFilesSection(entries);
+      appendNodes(result, start, end, context);
+      context.exitFilesSection(fileCount);
     }
-    return logSection;
   }
 
-  private CommitLogSection buildCommitLogRootsSection(List<CommitLogTemplateParser.TextTemplateNode> nodes, Date date)
+  int getRootCount()
   {
-    int usedNodes = 0;
-    final StringBuilder result = new StringBuilder(500);
-    for (int i = 0; i < nodes.size(); i++) {
-      final CommitLogTemplateParser.TextTemplateNode textTemplateNode = nodes.get(i);
-      String text = textTemplateNode.getText();
-      if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
-        String nodeText = text;
-        if (nodeText.equals(ROOT_ENTRY_START_PLACEHOLDER)) {
-          i++;
-          final CommitLogSection logSection = buildCommitLogRootEntries(getFollowingNodes(nodes, i), date);
-          text = logSection.getText();
-          i += logSection.getUsedNodes() - 1;
-        } else if (text.equals(ROOTS_SECTION_END_PLACEHOLDER)) {
-          usedNodes = i + 1;
-          break;
-        }
-      } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-        text = processCommonPlaceholders(text, date);
-      }
-      //noinspection GetterCallInLoop
-      if (!_commitLogEntriesByRootAndType.isEmpty()) {
-        result.append(text);
-      }
-    }
-    return new CommitLogSection(result.toString(), usedNodes);
+    return _entries.getRootCount();
   }
 
-  private CommitLogSection buildCommitLogRootEntries(List<CommitLogTemplateParser.TextTemplateNode> nodes, Date date)
+  /**
+   * @return the names of the roots holding committed files, in order of name.
+   */
+  List<String> getRootNames()
   {
-    final StringBuilder result = new StringBuilder(500);
-    int usedNodes = 0;
-    if (_commitLogEntriesByRootAndType.isEmpty()) {
-      usedNodes = appendCommitLogRootEntries(result, nodes, date, null, null);
-      return new CommitLogSection("", usedNodes);
-    } else {
-      for (Map.Entry<String, Map<Change.Type, Collection<CommitLogEntry>>> entry : _commitLogEntriesByRootAndType
-        .entrySet()) {
-        String rootName = entry.getKey();
-        Map<Change.Type, Collection<CommitLogEntry>> logEntriesByType = entry.getValue();
-        usedNodes = appendCommitLogRootEntries(result, nodes, date, rootName, logEntriesByType);
-      }
-      return new CommitLogSection(result.toString(), usedNodes);
+    final List<String> result = new ArrayList<String>(_entries.getRootCount());
+    for (int root = 0; root < _entries.getRootCount(); root++) {
+      result.add(_entries.getRootName(root));
     }
+    return result;
   }
 
-  private int appendCommitLogRootEntries(StringBuilder buffer, List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                         Date date,
-                                         @Nullable String rootName,
-                                         @Nullable Map<Change.Type, Collection<CommitLogEntry>> logEntriesByType
-  )
+  /**
+   * @return the number of committed files.
+   */
+  int getFileCount()
   {
-    int usedNodes = 0;
-    for (int i = 0; i < nodes.size(); i++) {
-      final CommitLogTemplateParser.TextTemplateNode textTemplateNode = nodes.get(i);
-      String text = textTemplateNode.getText();
-      if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
-        String nodeText = text;
-        if (isFileSectionStartPlaceholder(nodeText)) {
-          i++;
-          final List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(nodes, i);
-          CommitLogSection logSection = buildCommitLogFilesSection(followingNodes, rootName, nodeText);
-          i += logSection.getUsedNodes() - 1;
-          text = logSection.getText();
-        } else if (text.equals(ROOT_ENTRY_END_PLACEHOLDER)) {
-          usedNodes = i + 1;
-          break;
-        } else {
-          text = "Illegal section placeholder " + text + " : expecting " +
-                 CommitLogTemplateParser.BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                 ROOT_ENTRY_END_PLACEHOLDER + CommitLogTemplateParser.BLOCK_PLACEHOLDER_CLOSE_SYMBOL;
-        }
-//        if (text.equals(ROOTS_SECTION_END_PLACEHOLDER)) {
-        //they've forgotten the ENTRY_END, pretend ENTRY_END
-//          usedNodes = i; // allow section end to be seen by calling method
-//          break;
-//        }
-      } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-        String nodeText = text;
-        if (nodeText.equals(ROOT_NAME_PLACEHOLDER)) {
-          text = rootName;
-        } else if (nodeText.equals(FILE_COUNT_PLACEHOLDER)) {
-          int fileCount = 0;
-          if (logEntriesByType != null) {
-            for (Map.Entry<Change.Type, Collection<CommitLogEntry>> entries : logEntriesByType.entrySet()) {
-              fileCount += entries.getValue().size();
-            }
-          }
-          text = String.valueOf(fileCount);
-        } else {
-          text = processCommonPlaceholders(nodeText, date);
-        }
-      }
-      buffer.append(text);
-    }
-    return usedNodes;
+    return _entries.getFileCount();
   }
 
-  @NotNull
-  private CommitLogSection buildCommitLogFilesSection(@NotNull List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                                      @Nullable String rootName, boolean byType)
+  /**
+   * @return the committed entries, in the order they are listed.
+   */
+  CommitLogEntryStore.Range getCommittedEntries()
   {
-    if (byType) {
-      final CommitLogSection deleted = buildCommitLogFilesSection(nodes, rootName, Change.Type.DELETED);
-      final CommitLogSection modified = buildCommitLogFilesSection(nodes, rootName, Change.Type.MODIFICATION);
-      final CommitLogSection created = buildCommitLogFilesSection(nodes, rootName, Change.Type.NEW);
-      final int usedNodes = deleted.getUsedNodes();
-      // all used nodes should be same
-      assert (usedNodes == modified.getUsedNodes() && usedNodes == created.getUsedNodes());
-      return new CommitLogSection(deleted.getText() + modified.getText() + created.getText(), usedNodes);
-    } else {
-      return buildCommitLogFilesSection(nodes, rootName, (Change.Type)null);
-    }
+    return _entries.getEntries(-1, null);
   }
 
-  @NotNull
-  @SuppressWarnings({"AssignmentToForLoopParameter"})
-  private CommitLogSection buildCommitLogFilesSection(@NotNull List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                                      @Nullable String rootName, @Nullable Change.Type type)
+  String getRootList()
   {
-    int usedNodes = 0;
-    @Nullable final Collection<CommitLogEntry> entries = getCommitLogEntries(rootName, type);
-    final boolean hasEntries = entries != null && !entries.isEmpty();
-    final StringBuilder result = hasEntries ? new StringBuilder(500) : new StringBuilder(0);
-    for (int i = 0; i < nodes.size(); i++) {
-      final CommitLogTemplateParser.TextTemplateNode textTemplateNode = nodes.get(i);
-      String text = textTemplateNode.getText();
-      if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
-        if (text.equals(FILE_ENTRY_START_PLACEHOLDER)) {
-          i++;
-          final CommitLogSection logSection;
-          List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(nodes, i);
-          logSection = hasEntries ?
-                       buildCommitLogFileEntries(followingNodes, type, entries) :
-                       buildCommitLogFileEntry(followingNodes, type, null);
-          i += logSection.getUsedNodes() - 1;
-          text = logSection.getText();
-        } else if (isFilesSectionEndPlaceholder(text)) {
-          usedNodes = i + 1;
-          break;
-        }
-      } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-        if (text.equals(FILE_COUNT_PLACEHOLDER)) {
-          if (hasEntries) {
-            text = String.valueOf(entries.size());
-          }
-        } else {
-          text = "Illegal Placeholder : " + CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL + text +
-                 CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL;
-        }
-      }
-      if (hasEntries) {
-        result.append(text);
+    final StringBuilder stringBuilder = new StringBuilder(100);
+    for (int root = 0; root < _entries.getRootCount(); root++) {
+      if (root > 0) {
+        stringBuilder.append(", ");
       }
+      stringBuilder.append(_entries.getRootName(root));
     }
-    return new CommitLogSection(result.toString(), usedNodes);
+    return stringBuilder.toString();
   }
 
-  @NotNull
-  private static CommitLogSection buildCommitLogFileEntries(
-    @NotNull List<CommitLogTemplateParser.TextTemplateNode> followingNodes,
-    Change.Type defaultType, Collection<CommitLogEntry> entries)
+  String getCommitMessage()
   {
-    int usedNodes = 0;
-    final StringBuilder result = new StringBuilder(500);
-    for (final CommitLogEntry entry : entries) {
-      CommitLogSection logSection = buildCommitLogFileEntry(followingNodes,
-                                                            defaultType,
-                                                            entry);
-      result.append(logSection.getText());
-      usedNodes = logSection.getUsedNodes();
-    }
-    return new CommitLogSection(result.toString(), usedNodes);
+    return _commitMessage;
   }
 
-  @SuppressWarnings({"GetterCallInLoop"})
-  private static CommitLogSection buildCommitLogFileEntry(List<CommitLogTemplateParser.TextTemplateNode> followingNodes,
-                                                          Change.Type defaultType,
-                                                          @Nullable CommitLogEntry entry)
+  /**
+   * Sets the matcher with which to find the issue ids of the commit, in its commit message and optionally in the paths
+   * of its files.  No issue ids are found without one.
+   *
+   * @param basePath the path of the project base directory, separated by '/', which the paths of files not under a
+   *                 known VCS root are searched relative to.
+   */
+  void setIssueIdMatcher(@Nullable IssueIdMatcher issueIdMatcher, boolean findInFilePaths, @Nullable String basePath)
   {
-    Change.Type type = entry != null ? entry.getChangeType() : defaultType;
-    int usedNodes = 0;
-    final StringBuilder result = new StringBuilder(500);
-    @Nullable final FilePath filePath = entry != null ? entry.getFilePath() : null;
-    for (int i = 0; i < followingNodes.size(); i++) {
-      final CommitLogTemplateParser.TextTemplateNode textTemplateNode = followingNodes.get(i);
-      String text = textTemplateNode.getText();
-      if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
-        if (text.equals(FILE_ENTRY_END_PLACEHOLDER)) {
-          usedNodes = i + 1;
-          break;
-        } else {
-          text = "Illegal section placeholder " + text + " : expecting one of " +
-                 CommitLogTemplateParser.BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                 DELETED_FILES_SECTION_END_PLACEHOLDER + CommitLogTemplateParser.BLOCK_PLACEHOLDER_CLOSE_SYMBOL + ',' +
-                 CommitLogTemplateParser.BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                 ADDED_FILES_SECTION_END_PLACEHOLDER + CommitLogTemplateParser.BLOCK_PLACEHOLDER_CLOSE_SYMBOL + ',' +
-                 CommitLogTemplateParser.BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                 MODIFIED_FILES_SECTION_END_PLACEHOLDER + CommitLogTemplateParser.BLOCK_PLACEHOLDER_CLOSE_SYMBOL +
-                 " or " +
-                 CommitLogTemplateParser.BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                 ALL_FILES_BY_TYPE_SECTION_END_PLACEHOLDER + CommitLogTemplateParser.BLOCK_PLACEHOLDER_CLOSE_SYMBOL;
-        }
-//        else if (isFilesSectionEndPlaceholder(text)) {
-//          // they've forgotten the ENTRY_END, pretend ENTRY_END
-//          usedNodes = i; // allow section end to be seen by calling method
-//          break;
-//        }
-      } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-        if (entry != null) {
-          if (text.equals(FILE_NAME_PLACEHOLDER)) {
-            //noinspection GetterCallInLoop
-            text = filePath != null ? filePath.getName() : "<no file>";
-          } else if (text.equals(FILE_PATH_PLACEHOLDER)) {
-            text = filePath != null ? filePath.getPath() : "<no file>";
-          } else if (text.equals(FILE_ACTION_PLACEHOLDER)) {
-            if (type == Change.Type.DELETED) {
-              text = "Removed";
-            } else if (type == Change.Type.MODIFICATION) {
-              text = "Modified";
-            } else if (type == Change.Type.NEW) {
-              text = "Added";
-            }
-          } else if (text.equals(ROOT_NAME_PLACEHOLDER)) {
-            text = entry.getVcsRootName();
-          } else if (text.equals(PACKAGE_NAME_PLACEHOLDER)) {
-            text = entry.getPackageName();
-          } else if (text.equals(PACKAGE_PATH_PLACEHOLDER) || text.equals(PATH_FROM_ROOT_PLACEHOLDER)) {
-            text = entry.getPathFromRoot();
-          } else if (text.equals(OLD_REVISION_NUMBER_PLACEHOLDER)) {
-            if (entry.getOldVersion() == null || type == Change.Type.NEW) {
-              text = "Added";
-            } else {
-              text = entry.getOldVersion();
-            }
-          } else if (text.equals(NEW_REVISION_NUMBER_PLACEHOLDER)) {
-            if (entry.getNewVersion() == null || type == Change.Type.DELETED) {
-              text = "Removed";
-            } else {
-              text = entry.getNewVersion();
-            }
-          } else if (text.equals(CHANGE_SYMBOL_PLACEHOLDER)) {
-            if (entry.getOldVersion() == null || type == Change.Type.NEW) {
-              text = "+";
-            } else if (type == Change.Type.DELETED) {
-              text = "-";
-            } else {
-              text = "*";
-            }
-          } else {
-            text = "Illegal Placeholder : " + CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL + text +
-                   CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL;
-          }
-        }
+    _issueIdMatcher = issueIdMatcher;
+    _findIssueIdsInFilePaths = findInFilePaths;
+    _basePath = basePath;
+  }
+
+  /**
+   * @return the distinct issue ids of the commit, in the order found.
+   */
+  List<String> findIssueIds()
+  {
+    if (_issueIdMatcher == null) {
+      return Collections.emptyList();
+    }
+    final Set<String> result = new LinkedHashSet<String>();
+    _issueIdMatcher.findIssueIds(_commitMessage, result);
+    if (_findIssueIdsInFilePaths) {
+      final CommitLogEntryStore.Range entries = getCommittedEntries();
+      for (int i = 0; i < entries.size(); i++) {
+        _issueIdMatcher.findIssueIds(getSearchedPath(entries.get(i)), result);
       }
-      result.append(text);
     }
-    return new CommitLogSection(result.toString(), usedNodes);
+    return new ArrayList<String>(result);
   }
 
-  private static List<CommitLogTemplateParser.TextTemplateNode> getFollowingNodes(
-    @NotNull List<CommitLogTemplateParser.TextTemplateNode> textTemplateNodes, int start)
+  /**
+   * @return the path of the file of the given entry relative to its VCS root, or else to the project base directory,
+   *         or else just its name, so that the directories the project is checked out under, which may well be named
+   *         after an issue, are not searched for issue ids.
+   */
+  private String getSearchedPath(CommitLogEntry entry)
   {
-    return textTemplateNodes.subList(start, textTemplateNodes.size());
+    final VirtualFile vcsRoot = entry.getVcsRoot();
+    final String basePath = vcsRoot != null ? vcsRoot.getPath() : _basePath;
+    final String path = entry.getPath();
+    if (basePath != null && path.length() > basePath.length() && path.startsWith(basePath) &&
+        path.charAt(basePath.length()) == '/') {
+      return path.substring(basePath.length() + 1);
+    }
+    return entry.getName();
   }
 
-  private static String toString(@NotNull Collection collection)
+  CompiledCommitLogTemplate getTemplate()
   {
-    final StringBuilder stringBuilder = new StringBuilder(100);
-    for (final Iterator iterator = collection.iterator(); iterator.hasNext();) {
-      stringBuilder.append(iterator.next());
-      if (iterator.hasNext()) {
-        stringBuilder.append(", ");
-      }
-    }
-    return stringBuilder.toString();
+    return _commitLogTemplate;
   }
 
   public String getChangeListName()
@@ -579,64 +307,202 @@ class CommitLogBuilder
     this.changeListName = changeListName;
   }
 
-  public static CommitLogBuilder createCommitLogBuilder(String template,
+  /**
+   * Creates a builder holding an entry for each of the given changes.
+   *
+   * @param changeListName the name of the changelist the changes belong to, or null to look it up from the changes.
+   * @param directoryCache the cache through which to resolve the attributes required by the template.
+   */
+  public static CommitLogBuilder createCommitLogBuilder(CompiledCommitLogTemplate template,
                                                         String commitMessage, Project project,
-                                                        Collection<File> files)
+                                                        Collection<Change> changes,
+                                                        @Nullable String changeListName,
+                                                        ChangedDirectoryCache directoryCache)
   {
     CommitLogBuilder commitLogBuilder = new CommitLogBuilder(template, commitMessage);
-    for (final File file : files) {
-      final FilePath filePath = file.exists() ?
-                                VcsUtil.getFilePath(file) : VcsUtil.getFilePathForDeletedFile(file.getPath(),
-                                                                                              false);
-      ChangeListManager changeListManager = ChangeListManager.getInstance(project);
-      final Change change = changeListManager.getChange(filePath);
-      if (commitLogBuilder.getChangeListName() == null) {
-        commitLogBuilder.setChangeListName(changeListManager.getChangeList(change).getName());
-      }
-      if (change != null) {
-        final Change.Type changeType = change.getType();
-        final ContentRevision beforeRevision = changeType == Change.Type.NEW ? null : change.getBeforeRevision();
-        final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(project, filePath);
-        final String vcsRootName = vcsRoot != null ? vcsRoot.getPresentableName() : "";
-        AbstractVcs vcs = VcsUtil.getVcsFor(project, filePath);
-        if (vcs != null) {
-          String packageName = getPackageName(project, filePath);
-          String pathFromRoot = getPathFromRoot(vcsRoot, filePath);
-          final CommitLogEntry commitLogEntry = new CommitLogEntry(file, filePath, vcsRootName, pathFromRoot,
-                                                                   packageName, vcs,
-                                                                   changeType);
-          commitLogBuilder.addCommitLogEntry(commitLogEntry);
-          if (beforeRevision != null) {
-            commitLogEntry.setOldVersion(beforeRevision.getRevisionNumber().asString());
-          }
-        }
+    commitLogBuilder.setChangeListName(changeListName != null ? changeListName : getChangeListName(project, changes));
+    for (final Change change : changes) {
+      final CommitLogEntry commitLogEntry = createCommitLogEntry(directoryCache, change);
+      if (commitLogEntry != null) {
+        commitLogBuilder.addCommitLogEntry(commitLogEntry);
       }
     }
     return commitLogBuilder;
   }
 
-  static String getPathFromRoot(VirtualFile vcsRoot, FilePath filePath)
+  /**
+   * @return the name of the changelist holding the given changes, or null if they are not in a changelist.
+   */
+  @Nullable
+  static String getChangeListName(Project project, Collection<Change> changes)
   {
-    String pathFromRoot = null;
-    FilePath path = filePath.getParentPath();
-    while (path != null && !path.getVirtualFile().equals(vcsRoot)) {
-      String name = path.getName();
-      pathFromRoot = pathFromRoot != null ? name + '/' + pathFromRoot : name;
-      path = path.getParentPath();
+    if (changes.isEmpty()) {
+      return null;
     }
-    return pathFromRoot != null ? pathFromRoot : "";
+    final LocalChangeList changeList = ChangeListManager.getInstance(project).getChangeList(changes.iterator().next());
+    return changeList != null ? changeList.getName() : null;
   }
 
-  static String getPackageName(Project project, FilePath filePath)
+  /**
+   * @return an entry for the given change, holding the attributes required by the template, or null if the changed
+   *         file is not under version control.
+   */
+  @Nullable
+  static CommitLogEntry createCommitLogEntry(ChangedDirectoryCache directoryCache, Change change)
   {
-    String text;
-    final VirtualFile parent = filePath.getVirtualFileParent();
-    final ProjectFileIndex projectFileIndex = ProjectRootManager.getInstance(project).getFileIndex();
-    if (parent != null) {
-      text = projectFileIndex.getPackageNameByDirectory(parent);
-    } else {
-      text = "";
+    final FilePath filePath = ChangesUtil.getFilePath(change);
+    final Change.Type changeType = change.getType();
+    final ContentRevision beforeRevision = changeType == Change.Type.NEW ? null : change.getBeforeRevision();
+    final ChangedDirectoryCache.ChangedDirectory directory = directoryCache.getDirectoryOf(filePath);
+    if (directory.getVcs() == null) {
+      return null;
+    }
+    final CommitLogEntry commitLogEntry = new CommitLogEntry(directory, filePath.getName(), changeType);
+    if (beforeRevision != null) {
+      commitLogEntry.setOldVersion(beforeRevision.getRevisionNumber().asString());
+    }
+    return commitLogEntry;
+  }
+
+  /**
+   * The state of a single rendering of the template, through which placeholders resolve their values.
+   */
+  static class RenderContext
+  {
+    private final CommitLogBuilder _builder;
+    private final Date _date;
+    private int _root = -1;
+    @Nullable
+    private String _rootName;
+    private int _fileCount;
+    private CommitLogEntryStore.Range _entries;
+    @Nullable
+    private CommitLogEntry _entry;
+    @Nullable
+    private List<String> _issueIds;
+    @Nullable
+    private String _issueId;
+
+    private RenderContext(CommitLogBuilder builder, Date date)
+    {
+      _builder = builder;
+      _date = date;
+      _fileCount = builder._entries.getFileCount();
+    }
+
+    CommitLogBuilder getBuilder()
+    {
+      return _builder;
+    }
+
+    Date getDate()
+    {
+      return _date;
+    }
+
+    /**
+     * @return the index of the vcs root being rendered, or -1 if outside a [ROOT_ENTRY] block.
+     */
+    int getRoot()
+    {
+      return _root;
+    }
+
+    /**
+     * @return the vcs root being rendered, or null if outside a [ROOT_ENTRY] block.
+     */
+    @Nullable
+    String getRootName()
+    {
+      return _rootName;
+    }
+
+    /**
+     * @return the number of files in the innermost block being rendered.
+     */
+    int getFileCount()
+    {
+      return _fileCount;
+    }
+
+    CommitLogEntryStore.Range getEntries()
+    {
+      return _entries;
+    }
+
+    /**
+     * @return the file being rendered, or null if outside a [FILE_ENTRY] block.
+     */
+    @Nullable
+    CommitLogEntry getEntry()
+    {
+      return _entry;
+    }
+
+    /**
+     * @return the issue ids of the commit, found when first asked for.
+     */
+    List<String> getIssueIds()
+    {
+      if (_issueIds == null) {
+        _issueIds = _builder.findIssueIds();
+      }
+      return _issueIds;
+    }
+
+    /**
+     * @return the issue being rendered, or null if outside an [ISSUE_ENTRY] block.
+     */
+    @Nullable
+    String getIssueId()
+    {
+      return _issueId;
+    }
+
+    private void enterRoot(int root, String rootName, int fileCount)
+    {
+      _root = root;
+      _rootName = rootName;
+      _fileCount = fileCount;
+    }
+
+    private void exitRoot(int fileCount)
+    {
+      _root = -1;
+      _rootName = null;
+      _fileCount = fileCount;
+    }
+
+    private void enterFilesSection(CommitLogEntryStore.Range entries)
+    {
+      _entries = entries;
+      _fileCount = entries.size();
+    }
+
+    private void exitFilesSection(int fileCount)
+    {
+      _entries = null;
+      _fileCount = fileCount;
+    }
+
+    private void enterEntry(CommitLogEntry entry)
+    {
+      _entry = entry;
+    }
+
+    private void exitEntry()
+    {
+      _entry = null;
+    }
+
+    private void enterIssue(String issueId)
+    {
+      _issueId = issueId;
+    }
+
+    private void exitIssue()
+    {
+      _issueId = null;
     }
-    return text;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+import com.intellij.openapi.vcs.VcsListener;
+import com.intellij.openapi.vcs.changes.*;
+import com.intellij.util.messages.MessageBusConnection;
+
+import java.util.*;
+
+/**
+ * Keeps the directory attributes of the project's pending changes resolved as the changes are made, so that building a
+ * commit log only has to resolve what changed since the last changelist update.  The attributes are resolved on the
+ * thread that notifies changelist updates, a chunk of directories per read action, and are discarded whenever the
+ * project roots or the VCS mappings change.
+ */
+class CommitLogChangeModel extends ChangeListAdapter implements Disposable
+{
+  private static final Set<CommitLogEntry.Attribute> MODEL_ATTRIBUTES =
+    EnumSet.of(CommitLogEntry.Attribute.VCS_ROOT, CommitLogEntry.Attribute.PATH_FROM_ROOT,
+               CommitLogEntry.Attribute.PACKAGE_NAME);
+  private static final int CHUNK_SIZE = 64;
+
+  private final Project _project;
+  private final ChangeListManager _changeListManager;
+  private volatile ChangedDirectoryCache _directoryCache;
+
+  CommitLogChangeModel(Project project)
+  {
+    _project = project;
+    _changeListManager = ChangeListManager.getInstance(project);
+    _directoryCache = new ChangedDirectoryCache(project, MODEL_ATTRIBUTES);
+  }
+
+  /**
+   * Starts listening for changelist updates and for the events that make resolved attributes stale.
+   */
+  void install()
+  {
+    _changeListManager.addChangeListListener(this);
+    final MessageBusConnection connection = _project.getMessageBus().connect(this);
+    connection.subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootListener()
+    {
+      public void beforeRootsChange(ModuleRootEvent event)
+      {
+      }
+
+      public void rootsChanged(ModuleRootEvent event)
+      {
+        invalidate();
+      }
+    });
+    connection.subscribe(ProjectLevelVcsManager.VCS_CONFIGURATION_CHANGED, new VcsListener()
+    {
+      public void directoryMappingChanged()
+      {
+        invalidate();
+      }
+    });
+  }
+
+  public void dispose()
+  {
+    _changeListManager.removeChangeListListener(this);
+  }
+
+  /**
+   * @return a directory cache for building a commit log with the given template, holding the attributes resolved so
+   *         far.
+   */
+  ChangedDirectoryCache getDirectoryCache(CompiledCommitLogTemplate template)
+  {
+    final ChangedDirectoryCache directoryCache = _directoryCache;
+    if (directoryCache.resolves(template.getRequiredAttributes())) {
+      return directoryCache;
+    }
+    return new ChangedDirectoryCache(_project, template.getRequiredAttributes());
+  }
+
+  /**
+   * @return the directory cache of the model, which may not yet hold any given directory.
+   */
+  ChangedDirectoryCache getDirectoryCache()
+  {
+    return _directoryCache;
+  }
+
+  private void invalidate()
+  {
+    _directoryCache = new ChangedDirectoryCache(_project, MODEL_ATTRIBUTES);
+  }
+
+  @Override
+  public void changeListUpdateDone()
+  {
+    try {
+      if (!_project.isDisposed()) {
+        update();
+      }
+    } catch (Throwable e) {
+      e.printStackTrace(); // protect IDE
+    }
+  }
+
+  /**
+   * Forgets the directories of changes that are gone, and resolves those of changes not seen before, so that a large
+   * changelist update does not hold one long read action.
+   */
+  private void update()
+  {
+    final ChangedDirectoryCache directoryCache = _directoryCache;
+    final Set<String> keys = new HashSet<String>();
+    final List<FilePath> unresolved = new ArrayList<FilePath>();
+    for (final Change change : _changeListManager.getAllChanges()) {
+      final FilePath filePath = ChangesUtil.getFilePath(change);
+      final String key = ChangedDirectoryCache.getKey(filePath);
+      if (keys.add(key) && directoryCache.getResolvedDirectory(key) == null) {
+        unresolved.add(filePath);
+      }
+    }
+    directoryCache.retainDirectories(keys);
+    for (int start = 0; start < unresolved.size(); start += CHUNK_SIZE) {
+      if (_project.isDisposed() || directoryCache != _directoryCache) {
+        return;
+      }
+      final List<FilePath> chunk = unresolved.subList(start, Math.min(start + CHUNK_SIZE, unresolved.size()));
+      ApplicationManager.getApplication().runReadAction(new Runnable()
+      {
+        public void run()
+        {
+          for (final FilePath filePath : chunk) {
+            directoryCache.getDirectoryOf(filePath);
+          }
+        }
+      });
+    }
+  }
+}
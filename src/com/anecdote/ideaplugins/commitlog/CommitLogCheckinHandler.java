@@ -16,15 +16,14 @@
 package com.anecdote.ideaplugins.commitlog;
 
 import com.intellij.openapi.Disposable;
-import com.intellij.openapi.editor.*;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vcs.*;
 import com.intellij.openapi.vcs.changes.Change;
 import com.intellij.openapi.vcs.checkin.CheckinHandler;
-import com.intellij.openapi.vcs.diff.DiffProvider;
-import com.intellij.openapi.vcs.history.*;
 import com.intellij.openapi.vcs.ui.RefreshableOnComponent;
-import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -43,6 +42,7 @@ class CommitLogCheckinHandler extends CheckinHandler
   private final Project _project;
   private final CheckinProjectPanel _panel;
   private CommitLogBuilder _commitLogBuilder;
+  private String _templateError;
   private CommitLogCheckinHandler.AfterCheckinConfigPanel _afterCheckinConfigPanel = new AfterCheckinConfigPanel();
 
   CommitLogCheckinHandler(CommitLogProjectComponent projectComponent, CheckinProjectPanel panel)
@@ -66,10 +66,9 @@ class CommitLogCheckinHandler extends CheckinHandler
     final ReturnResult returnResult = super.beforeCheckin();
     if (_projectComponent.isGenerateTextualCommitLog()) {
       try {
-        List<AbstractVcs> affectedVcses = new ArrayList<AbstractVcs>();
-        _commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(_projectComponent.getTextualCommitLogTemplate(),
-                                                                    _panel.getCommitMessage(), _panel.getProject(),
-                                                                    _panel.getFiles());
+        _commitLogBuilder = collectCommitLogEntries(_projectComponent.getCompiledCommitLogTemplate());
+      } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+        _templateError = e.getMessage();
       } catch (Throwable e) {
         e.printStackTrace(); // protect IDE
       }
@@ -77,6 +76,37 @@ class CommitLogCheckinHandler extends CheckinHandler
     return returnResult;
   }
 
+  /**
+   * Collects the entries of the commit log in a cancellable task, so that the commit dialog stays responsive for large
+   * changelists.
+   *
+   * @return the builder holding the entries, or null if the user cancelled the collection.  The commit goes ahead
+   *         without a commit log in that case.
+   */
+  @Nullable
+  private CommitLogBuilder collectCommitLogEntries(final CompiledCommitLogTemplate template)
+  {
+    final String commitMessage = _panel.getCommitMessage();
+    final Collection<Change> changes = _panel.getSelectedChanges();
+    final ChangedDirectoryCache directoryCache = _projectComponent.getDirectoryCache(template);
+    final CommitLogBuilder[] result = new CommitLogBuilder[1];
+    final boolean completed = ProgressManager.getInstance().runProcessWithProgressSynchronously(new Runnable()
+    {
+      public void run()
+      {
+        final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+        result[0] = CommitLogEntryCollector.createCommitLogBuilder(template, commitMessage, _project, changes, null,
+                                                                   directoryCache, indicator);
+      }
+    }, "Preparing Commit Log", true, _project);
+    if (!completed) {
+      CommitLogProjectComponent.log("CommitLogCheckinHandler::collectCommitLogEntries cancelled");
+      return null;
+    }
+    _projectComponent.setIssueIdMatcher(result[0]);
+    return result[0];
+  }
+
   @Override
   public void checkinFailed(List<VcsException> exception)
   {
@@ -86,6 +116,7 @@ class CommitLogCheckinHandler extends CheckinHandler
       if (_projectComponent.isGenerateTextualCommitLog()) {
         outputCommitLog(true);
         _commitLogBuilder = null;
+        _templateError = null;
       }
     } catch (Throwable e) {
       // protect IDE
@@ -106,6 +137,7 @@ class CommitLogCheckinHandler extends CheckinHandler
       e.printStackTrace(); // protect ide
     }
     _commitLogBuilder = null;
+    _templateError = null;
   }
 
   private void outputCommitLog(final boolean failed)
@@ -133,89 +165,91 @@ class CommitLogCheckinHandler extends CheckinHandler
 //        e.printStackTrace();
 //      }
 //    }
-    updateEntryVersions();
-    _commitLogBuilder.removeUncommittedEntries();
     final Date date = new Date();
-    String commitLog;
-    try {
-      commitLog = _commitLogBuilder.buildCommitLog(date);
-    } catch (CommitLogTemplateParser.TextTemplateParserException e) {
-      commitLog = e.getMessage();
-    }
-    final String changeListName = _commitLogBuilder.getChangeListName();
-//      CommitLogProjectComponent.log(commitLog);
-    final String finalCommitLog = commitLog;
-    SwingUtilities.invokeLater(new Runnable()
-    {
-      public void run()
+    final CommitLogBuilder commitLogBuilder = _commitLogBuilder;
+    if (commitLogBuilder != null) {
+      // look up revisions and render in the background, so that the commit completes without waiting for either
+      new Task.Backgroundable(_project, "Generating Commit Log", true)
       {
-        CommitLogProjectComponent.log("CommitLogCheckinHandler::outputCommitLog Runnable.run() Entered");
-        EditorFactory editorFactory = EditorFactory.getInstance();
-        Document document = editorFactory.createDocument(finalCommitLog);
-        Editor viewer = editorFactory.createViewer(document, _project);
-        EditorSettings editorsettings = viewer.getSettings();
-        editorsettings.setFoldingOutlineShown(false);
-        editorsettings.setLineMarkerAreaShown(false);
-        editorsettings.setLineNumbersShown(false);
-        editorsettings.setRightMarginShown(false);
-        String tabTitle = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(date) + " : " +
-                          changeListName;
-        if (failed) {
-          tabTitle += " [FAILED]";
+        private CommitLogCompressor _compressor;
+        private byte[] _compressedCommitLog;
+        private boolean _partial;
+
+        @Override
+        public void run(@NotNull ProgressIndicator indicator)
+        {
+          // new revisions are only needed to render them, or to find which files a failed commit did not commit
+          if (failed || commitLogBuilder.getTemplate().requires(CommitLogEntry.Attribute.NEW_REVISION)) {
+            indicator.setText("Looking up committed revisions");
+            indicator.setIndeterminate(false);
+            _partial = !new CommitLogRevisionResolver(_project, commitLogBuilder, indicator,
+                                                      _projectComponent.getRevisionLookupBudgetSeconds() * 1000L,
+                                                      _projectComponent.getVcsLookupTimeoutSeconds() * 1000L)
+              .updateEntryVersions();
+          }
+          indicator.setText("Rendering commit log");
+          final StringBuilder buffer = new StringBuilder(4096);
+          commitLogBuilder.buildCommitLog(date, buffer);
+          // compressed once here, for both the archive and the tab, rather than on the event dispatch thread
+          _compressor = _projectComponent.getCommitLogCompressor();
+          _compressedCommitLog = _compressor.compress(buffer);
+          _projectComponent.archiveCommitLog(date, commitLogBuilder, failed, _compressedCommitLog, _compressor);
+          _projectComponent.queuePostCommitActions(date, failed, buffer);
         }
-        CommitLogWindow window = _projectComponent.getCommitLogWindow();
-        window.addCommitLog(tabTitle, viewer);
-        window.ensureVisible(_project);
-      }
-    });
-  }
 
-  private void updateEntryVersions()
-  {
-    final Set<Map.Entry<Change.Type, Collection<CommitLogEntry>>> entries =
-      _commitLogBuilder.getCommitLogEntriesByTypeByRoot(null).entrySet();
-    for (final Map.Entry<Change.Type, Collection<CommitLogEntry>> mapEntry : entries) {
-      for (final CommitLogEntry commitLogEntry : mapEntry.getValue()) {
-        try {
-          String version = getCurrentFileVersion(commitLogEntry.getVcs(), commitLogEntry.getFilePath());
-          if (version == null) {
-            version = commitLogEntry.getOldVersion();
+        @Override
+        public void onSuccess()
+        {
+          if (_compressedCommitLog != null) {
+            showCommitLog(_compressedCommitLog, _compressor, commitLogBuilder.getChangeListName(), date, failed,
+                          _partial);
           }
-          commitLogEntry.setNewVersion(version);
-        } catch (VcsException e) {
-          e.printStackTrace();
         }
-      }
+
+        @Override
+        public void onCancel()
+        {
+          // revisions not found before the cancel are marked unresolved, so the log is still worth showing
+          onSuccess();
+        }
+      }.queue();
+    } else if (_templateError != null) {
+      final CommitLogCompressor compressor = _projectComponent.getCommitLogCompressor();
+      final byte[] templateError = compressor.compress(_templateError);
+      SwingUtilities.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          showCommitLog(templateError, compressor, "Template Error", date, failed, false);
+        }
+      });
     }
   }
 
-  @Nullable
-  private static String getCurrentFileVersion(@NotNull AbstractVcs vcs, FilePath filePath)
-    throws VcsException
+  /**
+   * Shows the given commit log in a new tab of the commit log window.  Must be called on the event dispatch thread.
+   *
+   * @param compressedCommitLog the text of the log, as compressed by the given compressor.
+   * @param partial             whether some revisions could not be found in time.
+   */
+  private void showCommitLog(byte[] compressedCommitLog, CommitLogCompressor compressor, String changeListName,
+                             Date date, boolean failed, boolean partial)
   {
-    String version = null;
-    final DiffProvider diffProvider = vcs.getDiffProvider();
-    final VirtualFile file = filePath.getVirtualFile();
-    if (diffProvider != null && file != null) {
-      final VcsRevisionNumber revision = diffProvider.getCurrentRevision(file);
-      if (revision != null) {
-        version = revision.asString();
-      }
-    } else {
-      // deleted or diff provider not supported - use alternate method but lookup will be slower.
-      final VcsHistoryProvider historyProvider = vcs.getVcsHistoryProvider();
-      if (historyProvider != null) {
-        final VcsHistorySession session = historyProvider.createSessionFor(filePath);
-        if (session != null) {
-          if (!session.getRevisionList().isEmpty()) {
-            VcsRevisionNumber currentRevisionNumber = session.getCurrentRevisionNumber();
-            if (currentRevisionNumber != null)
-              version = currentRevisionNumber.asString();
-          }
-        }
-      }
+    CommitLogProjectComponent.log("CommitLogCheckinHandler::showCommitLog Entered");
+    if (_project.isDisposed()) {
+      return;
+    }
+    String tabTitle = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(date) + " : " +
+                      changeListName;
+    if (failed) {
+      tabTitle += " [FAILED]";
+    }
+    if (partial) {
+      tabTitle += " [PARTIAL]";
     }
-    return version;
+    CommitLogWindow window = _projectComponent.getCommitLogWindow();
+    window.addCommitLog(tabTitle, compressedCommitLog, compressor);
+    window.ensureVisible(_project);
   }
 
   private class AfterCheckinConfigPanel implements RefreshableOnComponent
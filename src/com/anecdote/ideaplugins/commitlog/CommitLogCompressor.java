@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.*;
+
+/**
+ * Deflates commit logs with a preset dictionary made of the literal text of a commit log template.  Each log is
+ * compressed on its own, so any one can be read back without the others, and the boilerplate it shares with every
+ * other log generated from the same template is coded as references to the dictionary rather than stored again.
+ * <p/>
+ * The compressed form is a zlib stream, which records the Adler-32 checksum of its dictionary, so that a log given the
+ * wrong dictionary is detected rather than decoded to garbage.
+ */
+class CommitLogCompressor
+{
+  // the most of the dictionary deflate can refer back to
+  private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final byte[] _dictionary;
+  private final int _dictionaryId;
+
+  CommitLogCompressor(byte[] dictionary)
+  {
+    _dictionary = dictionary;
+    final Adler32 adler = new Adler32();
+    adler.update(dictionary);
+    _dictionaryId = (int)adler.getValue();
+  }
+
+  /**
+   * @return a compressor whose dictionary is the literal text of the given template.  As deflate prefers the end of
+   *         the dictionary, only the end of the text of a very long template is kept.
+   */
+  static CommitLogCompressor forTemplate(CompiledCommitLogTemplate template)
+  {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < template.getNodeCount(); i++) {
+      if (template.getPlaceholder(i) == null) {
+        text.append(template.getText(i));
+      }
+    }
+    return forText(text.toString());
+  }
+
+  /**
+   * @return a compressor whose dictionary is the given text, for templates that could not be compiled.
+   */
+  static CommitLogCompressor forText(String text)
+  {
+    final byte[] bytes = text.getBytes(UTF8);
+    if (bytes.length <= MAX_DICTIONARY_SIZE) {
+      return new CommitLogCompressor(bytes);
+    }
+    final byte[] dictionary = new byte[MAX_DICTIONARY_SIZE];
+    System.arraycopy(bytes, bytes.length - MAX_DICTIONARY_SIZE, dictionary, 0, MAX_DICTIONARY_SIZE);
+    return new CommitLogCompressor(dictionary);
+  }
+
+  byte[] getDictionary()
+  {
+    return _dictionary;
+  }
+
+  /**
+   * @return the Adler-32 checksum of the dictionary, as recorded in the data it compresses.
+   */
+  int getDictionaryId()
+  {
+    return _dictionaryId;
+  }
+
+  /**
+   * @return the id of the dictionary the given data was compressed with, or 0 if it was compressed without one.
+   */
+  static int getDictionaryId(byte[] data) throws IOException
+  {
+    if (data.length < 2) {
+      throw new IOException("Compressed commit log is truncated");
+    }
+    // a zlib header with the FDICT flag set is followed by the dictionary checksum
+    if ((data[1] & 0x20) == 0) {
+      return 0;
+    }
+    if (data.length < 6) {
+      throw new IOException("Compressed commit log is truncated");
+    }
+    return (data[2] & 0xff) << 24 | (data[3] & 0xff) << 16 | (data[4] & 0xff) << 8 | data[5] & 0xff;
+  }
+
+  byte[] compress(CharSequence text)
+  {
+    final byte[] bytes = text.toString().getBytes(UTF8);
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setDictionary(_dictionary);
+      deflater.setInput(bytes);
+      deflater.finish();
+      final ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      final byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        result.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return result.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  String decompress(byte[] data) throws IOException
+  {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      final ByteArrayOutputStream result = new ByteArrayOutputStream(data.length * 4);
+      final byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        final int length = inflater.inflate(buffer);
+        if (length > 0) {
+          result.write(buffer, 0, length);
+        } else if (inflater.needsDictionary()) {
+          if (inflater.getAdler() != _dictionaryId) {
+            throw new IOException("Commit log was compressed with a different dictionary");
+          }
+          inflater.setDictionary(_dictionary);
+        } else if (inflater.needsInput()) {
+          throw new IOException("Compressed commit log is truncated");
+        }
+      }
+      return new String(result.toByteArray(), UTF8);
+    } catch (DataFormatException e) {
+      final IOException exception = new IOException("Compressed commit log is corrupt : " + e.getMessage());
+      exception.initCause(e);
+      throw exception;
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -25,7 +25,6 @@ import com.intellij.openapi.fileTypes.FileTypeManager;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.IconLoader;
-import com.intellij.openapi.vcs.FilePathImpl;
 import com.intellij.openapi.vcs.changes.Change;
 import org.jetbrains.annotations.Nullable;
 
@@ -33,12 +32,12 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
-import java.io.File;
 import java.util.Date;
 
 public class CommitLogConfigurationPage extends JPanel
 {
   private CommitLogTemplate _template;
+  private final CommitLogProjectComponent _projectComponent;
   private boolean _modified;
   @Nullable
   private Editor _templateEditor;
@@ -106,6 +105,7 @@ public class CommitLogConfigurationPage extends JPanel
   {
     super(new BorderLayout());
     _template = template;
+    _projectComponent = projectComponent;
     EditorFactory editorFactory = EditorFactory.getInstance();
     if (editorFactory != null) {
       _templateDocument = editorFactory.createDocument(template.getTemplateText());
@@ -182,8 +182,10 @@ public class CommitLogConfigurationPage extends JPanel
     final String template = _templateDocument != null ? _templateDocument.getText() : "NO TEMPLATE";
     Application application = ApplicationManager.getApplication();
     try {
+      // compiled without the cache, which would otherwise fill with every version of the template as it is typed
       CommitLogBuilder sampleCommitLogBuilder =
-        new CommitLogBuilder(template, SAMPLE_COMMIT_MESSAGE);
+        new CommitLogBuilder(CompiledCommitLogTemplate.compile(template), SAMPLE_COMMIT_MESSAGE);
+      _projectComponent.setIssueIdMatcher(sampleCommitLogBuilder);
       addSampleCommitLogEntry(sampleCommitLogBuilder, "ModifiedClass1", Change.Type.MODIFICATION, "MyVCSModule");
       addSampleCommitLogEntry(sampleCommitLogBuilder, "ModifiedClass2", Change.Type.MODIFICATION, "MyVCSModule");
       addSampleCommitLogEntry(sampleCommitLogBuilder, "ObsoleteClass", Change.Type.DELETED, "MyVCSModule");
@@ -214,10 +216,10 @@ public class CommitLogConfigurationPage extends JPanel
   private static void addSampleCommitLogEntry(CommitLogBuilder sampleCommitLogBuilder, String className,
                                               Change.Type changeType, String vcsRootName)
   {
-    final File file = new File("c:/sandbox/" + vcsRootName + "/commitlog/samplecommit/" + className + ".java");
-    final CommitLogEntry logEntry = new CommitLogEntry(file, new FilePathImpl(file, false), vcsRootName,
-                                                       "commitlog/samplecommit", "commitlog.samplecommit", null,
-                                                       changeType);
+    final ChangedDirectoryCache.ChangedDirectory directory =
+      new ChangedDirectoryCache.ChangedDirectory("c:/sandbox/" + vcsRootName + "/commitlog/samplecommit", null, null,
+                                                 vcsRootName, "commitlog.samplecommit", "commitlog/samplecommit");
+    final CommitLogEntry logEntry = new CommitLogEntry(directory, className + ".java", changeType);
     if (changeType == Change.Type.NEW) {
       logEntry.setNewVersion("1.0");
     } else {
@@ -24,6 +24,14 @@ public class CommitLogConfigurationPanel extends JPanel
   private CommitLogConfigurationPage _commitLogTemplatePage;
   private CommitLogConfigurationPage _commitCommentTemplatePage;
   private JTabbedPane _tabbedPane;
+  private JSpinner _revisionLookupBudget = new JSpinner(new SpinnerNumberModel(120, 1, 3600, 10));
+  private JSpinner _vcsLookupTimeout = new JSpinner(new SpinnerNumberModel(60, 1, 3600, 10));
+  private JSpinner _maxCommitLogTabs = new JSpinner(new SpinnerNumberModel(20, 1, 1000, 1));
+  private JTextField _postCommitCommand = new JTextField();
+  private JTextField _postCommitDropDirectory = new JTextField();
+  private JTextField _postCommitUrl = new JTextField();
+  private JTextField _issueIdPrefixes = new JTextField(20);
+  private JCheckBox _findIssueIdsInFilePaths = new JCheckBox("Also look in file paths");
 
   public CommitLogConfigurationPanel(CommitLogProjectComponent projectComponent)
   {
@@ -78,27 +86,103 @@ public class CommitLogConfigurationPanel extends JPanel
     _tabbedPane = tabbedPane;
     _tabbedPane.addTab("Commit Log Template", _commitLogTemplatePage);
     tabbedPane.addTab("Commit Comment Template", _commitCommentTemplatePage);
+    tabbedPane.addTab("Post Commit Actions", createPostCommitActionsPage());
     add(tabbedPane, BorderLayout.CENTER);
-    add(new JLabel("Version " + CommitLogProjectComponent.VERSION +
-                   " : Copyright 2007 - 2009 Anecdote Software.  All Rights Reserved."),
-        BorderLayout.SOUTH);
+    JPanel revisionLookupPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    revisionLookupPanel.add(new JLabel("Look up committed revisions for up to"));
+    revisionLookupPanel.add(_revisionLookupBudget);
+    revisionLookupPanel.add(new JLabel("seconds, and up to"));
+    revisionLookupPanel.add(_vcsLookupTimeout);
+    revisionLookupPanel.add(new JLabel("seconds per VCS root"));
+    JPanel commitLogTabsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    commitLogTabsPanel.add(new JLabel("Keep up to"));
+    commitLogTabsPanel.add(_maxCommitLogTabs);
+    commitLogTabsPanel.add(new JLabel("commit logs open"));
+    JPanel issueIdsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    issueIdsPanel.add(new JLabel("Issue ID prefixes (e.g. PROJ-, BUG-):"));
+    issueIdsPanel.add(_issueIdPrefixes);
+    issueIdsPanel.add(_findIssueIdsInFilePaths);
+    JPanel settingsPanel = new JPanel(new GridLayout(3, 1));
+    settingsPanel.add(revisionLookupPanel);
+    settingsPanel.add(commitLogTabsPanel);
+    settingsPanel.add(issueIdsPanel);
+    JPanel southPanel = new JPanel(new BorderLayout());
+    southPanel.add(settingsPanel, BorderLayout.NORTH);
+    southPanel.add(new JLabel("Version " + CommitLogProjectComponent.VERSION +
+                              " : Copyright 2007 - 2009 Anecdote Software.  All Rights Reserved."),
+                   BorderLayout.SOUTH);
+    add(southPanel, BorderLayout.SOUTH);
+    if (_projectComponent != null) {
+      loadSettings();
+    }
+  }
+
+  private JComponent createPostCommitActionsPage()
+  {
+    JPanel fieldsPanel = new JPanel(new GridLayout(0, 1));
+    fieldsPanel.add(new JLabel("Run this command with the commit log files as arguments:"));
+    fieldsPanel.add(_postCommitCommand);
+    fieldsPanel.add(new JLabel("Copy commit logs into this directory:"));
+    fieldsPanel.add(_postCommitDropDirectory);
+    fieldsPanel.add(new JLabel("Post commit logs as JSON to this URL:"));
+    fieldsPanel.add(_postCommitUrl);
+    fieldsPanel.add(new JLabel("Leave blank to disable.  Logs are queued on disk and delivered in the background, " +
+                               "retrying on failure."));
+    fieldsPanel.add(new JLabel("These settings are kept in your workspace, and not shared with the project."));
+    JPanel page = new JPanel(new BorderLayout());
+    page.add(fieldsPanel, BorderLayout.NORTH);
+    return page;
   }
 
   public boolean isModified()
   {
-    return _commitCommentTemplatePage.isModified() || _commitLogTemplatePage.isModified();
+    return _commitCommentTemplatePage.isModified() || _commitLogTemplatePage.isModified() ||
+           getIntValue(_revisionLookupBudget) != _projectComponent.getRevisionLookupBudgetSeconds() ||
+           getIntValue(_vcsLookupTimeout) != _projectComponent.getVcsLookupTimeoutSeconds() ||
+           getIntValue(_maxCommitLogTabs) != _projectComponent.getMaxCommitLogTabs() ||
+           !_postCommitCommand.getText().equals(_projectComponent.getPostCommitSettings().getCommand()) ||
+           !_postCommitDropDirectory.getText().equals(_projectComponent.getPostCommitSettings().getDropDirectory()) ||
+           !_postCommitUrl.getText().equals(_projectComponent.getPostCommitSettings().getUrl()) ||
+           !_issueIdPrefixes.getText().equals(_projectComponent.getIssueIdPrefixes()) ||
+           _findIssueIdsInFilePaths.isSelected() != _projectComponent.isFindIssueIdsInFilePaths();
   }
 
   public void save()
   {
     _commitCommentTemplatePage.save();
     _commitLogTemplatePage.save();
+    _projectComponent.setRevisionLookupBudgetSeconds(getIntValue(_revisionLookupBudget));
+    _projectComponent.setVcsLookupTimeoutSeconds(getIntValue(_vcsLookupTimeout));
+    _projectComponent.setMaxCommitLogTabs(getIntValue(_maxCommitLogTabs));
+    _projectComponent.getPostCommitSettings().setCommand(_postCommitCommand.getText());
+    _projectComponent.getPostCommitSettings().setDropDirectory(_postCommitDropDirectory.getText());
+    _projectComponent.getPostCommitSettings().setUrl(_postCommitUrl.getText());
+    _projectComponent.setIssueIdPrefixes(_issueIdPrefixes.getText());
+    _projectComponent.setFindIssueIdsInFilePaths(_findIssueIdsInFilePaths.isSelected());
   }
 
   public void load()
   {
     _commitCommentTemplatePage.load();
     _commitLogTemplatePage.load();
+    loadSettings();
+  }
+
+  private void loadSettings()
+  {
+    _revisionLookupBudget.setValue(_projectComponent.getRevisionLookupBudgetSeconds());
+    _vcsLookupTimeout.setValue(_projectComponent.getVcsLookupTimeoutSeconds());
+    _maxCommitLogTabs.setValue(_projectComponent.getMaxCommitLogTabs());
+    _postCommitCommand.setText(_projectComponent.getPostCommitSettings().getCommand());
+    _postCommitDropDirectory.setText(_projectComponent.getPostCommitSettings().getDropDirectory());
+    _postCommitUrl.setText(_projectComponent.getPostCommitSettings().getUrl());
+    _issueIdPrefixes.setText(_projectComponent.getIssueIdPrefixes());
+    _findIssueIdsInFilePaths.setSelected(_projectComponent.isFindIssueIdsInFilePaths());
+  }
+
+  private static int getIntValue(JSpinner spinner)
+  {
+    return ((Number)spinner.getValue()).intValue();
   }
 
 
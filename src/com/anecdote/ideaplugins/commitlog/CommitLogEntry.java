@@ -18,54 +18,103 @@ package com.anecdote.ideaplugins.commitlog;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.vcsUtil.VcsUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 
-class CommitLogEntry implements Comparable
+/**
+ * A changed file listed in a commit log.  Entries are kept compact for commits of many files: the attributes shared by
+ * the files of a directory are held once by a {@link ChangedDirectoryCache.ChangedDirectory}, the path is held as the
+ * directory and the file name, and the IntelliJ {@link FilePath} of the file is only created when asked for.
+ */
+class CommitLogEntry
 {
-  private final File _file;
-  private final FilePath _filePath;
+  /**
+   * The attributes of an entry that are costly to collect, and so are only collected when a template makes use of
+   * them.
+   */
+  enum Attribute
+  {
+    VCS_ROOT, PATH_FROM_ROOT, PACKAGE_NAME, NEW_REVISION
+  }
+
+  private static final boolean CASE_SENSITIVE_PATHS = new File("a").compareTo(new File("A")) != 0;
+
+  private final ChangedDirectoryCache.ChangedDirectory _directory;
+  private final String _name;
   private final Change.Type _changeType;
-  private final String _vcsRootName;
-  private String _pathFromRoot;
-  private final String _packageName;
-  private final AbstractVcs _vcs;
   private String _oldVersion;
   private String _newVersion;
+  private boolean _newVersionUnresolved;
 
-  CommitLogEntry(File file, FilePath filePath, String vcsRootName, String pathFromRoot, String packageName,
-                 AbstractVcs vcs,
-                 Change.Type changeType)
+  CommitLogEntry(ChangedDirectoryCache.ChangedDirectory directory, String name, Change.Type changeType)
   {
-    _file = file;
-    _vcsRootName = vcsRootName;
-    _pathFromRoot = pathFromRoot;
-    _packageName = packageName != null ? packageName : "<no package>";
-    _vcs = vcs;
-    _filePath = filePath;
+    _directory = directory;
+    _name = name;
     _changeType = changeType;
   }
 
+  /**
+   * @return the directory holding the file, with the attributes collected for it.
+   */
+  ChangedDirectoryCache.ChangedDirectory getDirectory()
+  {
+    return _directory;
+  }
+
   public String getVcsRootName()
   {
-    return _vcsRootName;
+    return _directory.getVcsRootName();
+  }
+
+  /**
+   * @return the VCS root of the file, or null if the VCS_ROOT attribute was not collected.
+   */
+  @Nullable
+  VirtualFile getVcsRoot()
+  {
+    return _directory.getVcsRoot();
   }
 
-  public File getFile()
+  /**
+   * @return the name of the file.
+   */
+  String getName()
   {
-    return _file;
+    return _name;
   }
 
+  /**
+   * @return the path of the file, separated by '/'.
+   */
+  String getPath()
+  {
+    final String directoryPath = _directory.getPath();
+    if (directoryPath.length() == 0) {
+      return _name;
+    }
+    return new StringBuilder(directoryPath.length() + _name.length() + 1).append(directoryPath).append('/')
+      .append(_name).toString();
+  }
+
+  /**
+   * Creates the IntelliJ path of the file.  The path is not kept, so callers should hold on to it while they need it.
+   */
   FilePath getFilePath()
   {
-    return _filePath;
+    final String path = getPath();
+    if (_changeType == Change.Type.DELETED) {
+      return VcsUtil.getFilePathForDeletedFile(path, false);
+    }
+    return VcsUtil.getFilePath(new File(path.replace('/', File.separatorChar)));
   }
 
   AbstractVcs getVcs()
   {
-    return _vcs;
+    return _directory.getVcs();
   }
 
   String getNewVersion()
@@ -76,6 +125,21 @@ class CommitLogEntry implements Comparable
   void setNewVersion(String newVersion)
   {
     _newVersion = newVersion;
+    _newVersionUnresolved = false;
+  }
+
+  /**
+   * @return whether the lookup of the new revision failed or ran out of time.
+   */
+  boolean isNewVersionUnresolved()
+  {
+    return _newVersionUnresolved;
+  }
+
+  void setNewVersionUnresolved()
+  {
+    _newVersion = null;
+    _newVersionUnresolved = true;
   }
 
   String getOldVersion()
@@ -88,6 +152,14 @@ class CommitLogEntry implements Comparable
     _oldVersion = oldVersion;
   }
 
+  /**
+   * @return whether the old and new revisions differ, which is the case only for files that were committed.
+   */
+  boolean isRevisionChanged()
+  {
+    return _oldVersion == null ? _newVersion != null : !_oldVersion.equals(_newVersion);
+  }
+
   Change.Type getChangeType()
   {
     return _changeType;
@@ -95,68 +167,45 @@ class CommitLogEntry implements Comparable
 
   public String getPackageName()
   {
-    return _packageName;
+    final String packageName = _directory.getPackageName();
+    return packageName != null ? packageName : "<no package>";
   }
 
   public String getPathFromRoot()
   {
-    return _pathFromRoot;
+    return _directory.getPathFromRoot();
   }
 
   @NotNull
   @Override
   public String toString()
   {
-    return _filePath + " : " + _oldVersion + " -> " + _newVersion;
+    return getPath() + " : " + _oldVersion + " -> " + _newVersion;
   }
 
-  @Override
-  public boolean equals(@Nullable Object obj)
+  /**
+   * Returns a key that orders entries as they are listed - files in deeper directories first, then by path - with a
+   * single string comparison.  The key is the depth of the file, inverted so that deeper files come first, followed by
+   * the path, folded to lower case where the file system ignores case.
+   */
+  String getSortKey()
   {
-    if (this == obj) {
-      return true;
-    }
-    if (obj == null || getClass() != obj.getClass()) {
-      return false;
-    }
-
-    final CommitLogEntry that = (CommitLogEntry)obj;
-
-    return _file.equals(that._file);
-  }
-
-  @Override
-  public int hashCode()
-  {
-    return _file.hashCode();
-  }
-
-  public int compareTo(Object o)
-  {
-    int depth = getDepth(_file);
-    File otherFile = ((CommitLogEntry)o)._file;
-    int otherDepth = getDepth(otherFile);
-    if (depth == otherDepth) {
-      return _file.compareTo(otherFile);
-    }
-    if (depth < otherDepth) {
-      return +1;
+    final String path = getPath().replace('/', File.separatorChar);
+    int depth = 1;
+    for (int i = 0; i < path.length(); i++) {
+      if (path.charAt(i) == File.separatorChar) {
+        depth++;
+      }
     }
-    return -1;
-  }
-
-  private static int getDepth(File file)
-  {
-    String path = file.getPath();
-    int result = 1;
-    int i = 0;
-    while (i > -1) {
-      i = path.indexOf(File.separatorChar, i);
-      if (i > -1) {
-        result++;
-        i++;
+    final StringBuilder result = new StringBuilder(path.length() + 1);
+    result.append((char)(Character.MAX_VALUE - depth));
+    if (CASE_SENSITIVE_PATHS) {
+      result.append(path);
+    } else {
+      for (int i = 0; i < path.length(); i++) {
+        result.append(Character.toLowerCase(Character.toUpperCase(path.charAt(i))));
       }
     }
-    return result;
+    return result.toString();
   }
 }
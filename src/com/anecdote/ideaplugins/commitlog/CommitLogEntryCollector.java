@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.changes.Change;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the entries of a commit log from a set of changes, resolving the changes in parallel on pooled threads.
+ * Each thread claims chunks of changes in turn and resolves a chunk within a single read action, so that write
+ * actions are never held off for long.  The resolved entries are added to the builder in the order of the changes,
+ * whatever the order in which the chunks were resolved.
+ */
+class CommitLogEntryCollector
+{
+  /**
+   * The number of changes resolved in a single read action.
+   */
+  private static final int CHUNK_SIZE = 64;
+
+  private final ChangedDirectoryCache _directoryCache;
+  private final Change[] _changes;
+  private final CommitLogEntry[] _entries;
+  private final ProgressIndicator _indicator;
+  private final AtomicInteger _nextChunk = new AtomicInteger();
+  private final AtomicInteger _resolvedCount = new AtomicInteger();
+
+  private CommitLogEntryCollector(ChangedDirectoryCache directoryCache, Collection<Change> changes,
+                                  ProgressIndicator indicator)
+  {
+    _directoryCache = directoryCache;
+    _changes = changes.toArray(new Change[changes.size()]);
+    _entries = new CommitLogEntry[_changes.length];
+    _indicator = indicator;
+  }
+
+  /**
+   * Creates a builder holding an entry for each of the given changes, reporting progress to the given indicator.
+   *
+   * @param changeListName the name of the changelist the changes belong to, or null to look it up from the changes.
+   * @param directoryCache the cache through which to resolve the attributes required by the template.
+   * @throws ProcessCanceledException if the indicator is cancelled before all the changes are resolved.
+   */
+  static CommitLogBuilder createCommitLogBuilder(CompiledCommitLogTemplate template, String commitMessage,
+                                                 Project project, Collection<Change> changes,
+                                                 @Nullable String changeListName,
+                                                 ChangedDirectoryCache directoryCache, ProgressIndicator indicator)
+  {
+    indicator.setText("Collecting commit log entries");
+    indicator.setIndeterminate(false);
+    final CommitLogEntryCollector collector =
+      new CommitLogEntryCollector(directoryCache, changes, indicator);
+    collector.resolveEntries();
+    final CommitLogBuilder commitLogBuilder = new CommitLogBuilder(template, commitMessage);
+    commitLogBuilder.setChangeListName(changeListName != null ? changeListName :
+                                       CommitLogBuilder.getChangeListName(project, changes));
+    for (final CommitLogEntry entry : collector._entries) {
+      if (entry != null) {
+        commitLogBuilder.addCommitLogEntry(entry);
+      }
+    }
+    return commitLogBuilder;
+  }
+
+  private void resolveEntries()
+  {
+    final int chunkCount = (_changes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    final int threadCount = Math.min(chunkCount, Runtime.getRuntime().availableProcessors());
+    final Application application = ApplicationManager.getApplication();
+    final List<Future<?>> helpers = new ArrayList<Future<?>>();
+    final Runnable helper = new Runnable()
+    {
+      public void run()
+      {
+        resolveChunks(false);
+      }
+    };
+    for (int i = 1; i < threadCount; i++) {
+      helpers.add(application.executeOnPooledThread(helper));
+    }
+    try {
+      // the calling thread works too, and is the only one to report progress
+      resolveChunks(true);
+    } finally {
+      for (final Future<?> future : helpers) {
+        waitFor(future);
+      }
+    }
+    if (_indicator.isCanceled()) {
+      throw new ProcessCanceledException();
+    }
+  }
+
+  private void resolveChunks(boolean reportProgress)
+  {
+    final Application application = ApplicationManager.getApplication();
+    int chunk;
+    while (!_indicator.isCanceled() && (chunk = _nextChunk.getAndIncrement()) * CHUNK_SIZE < _changes.length) {
+      final int start = chunk * CHUNK_SIZE;
+      final int end = Math.min(start + CHUNK_SIZE, _changes.length);
+      application.runReadAction(new Runnable()
+      {
+        public void run()
+        {
+          for (int i = start; i < end; i++) {
+            _entries[i] = CommitLogBuilder.createCommitLogEntry(_directoryCache, _changes[i]);
+          }
+        }
+      });
+      final int resolvedCount = _resolvedCount.addAndGet(end - start);
+      if (reportProgress) {
+        _indicator.setFraction((double)resolvedCount / _changes.length);
+      }
+    }
+  }
+
+  private static void waitFor(Future<?> future)
+  {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessCanceledException();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+}
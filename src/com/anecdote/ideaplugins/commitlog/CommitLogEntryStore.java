@@ -0,0 +1,376 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.vcs.changes.Change;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * The entries of a commit log, held column by column in arrays, together with the views of them that templates list:
+ * by root, by change type, and by root and change type.  Each view is a single array of entry indexes grouped by its
+ * keys, with the start of each group held in an offsets array.
+ * <p/>
+ * Whether each entry was committed is held in a bit set, and only committed entries are listed.  Entries are sorted
+ * once after they are added, and the views are derived from the sorted entries and the committed bits in one pass
+ * when first needed, so recording which files a partly failed commit left out costs a single pass.
+ */
+class CommitLogEntryStore
+{
+  /**
+   * The order in which change types are grouped, which is the order in which [ALL_FILES_BY_TYPE] lists files.
+   */
+  static final List<Change.Type> TYPE_ORDER;
+
+  private static final int TYPE_COUNT;
+  private static final int[] TYPE_RANKS;
+  private static final int INITIAL_CAPACITY = 64;
+
+  static {
+    final Set<Change.Type> typeOrder = new LinkedHashSet<Change.Type>();
+    typeOrder.add(Change.Type.DELETED);
+    typeOrder.add(Change.Type.MODIFICATION);
+    typeOrder.add(Change.Type.NEW);
+    typeOrder.addAll(EnumSet.allOf(Change.Type.class));
+    TYPE_ORDER = Collections.unmodifiableList(new ArrayList<Change.Type>(typeOrder));
+    TYPE_COUNT = TYPE_ORDER.size();
+    TYPE_RANKS = new int[TYPE_COUNT];
+    for (int i = 0; i < TYPE_COUNT; i++) {
+      TYPE_RANKS[TYPE_ORDER.get(i).ordinal()] = i;
+    }
+  }
+
+  // columns, in the order entries were added
+  private int _size;
+  private CommitLogEntry[] _entries = new CommitLogEntry[INITIAL_CAPACITY];
+  private int[] _rootIds = new int[INITIAL_CAPACITY];
+  private int[] _typeRanks = new int[INITIAL_CAPACITY];
+  private final Map<String, Integer> _rootIdsByName = new HashMap<String, Integer>();
+  private final BitSet _committed = new BitSet();
+  private final Map<String, String> _revisions = new HashMap<String, String>();
+
+  // the entries in the order they are listed, valid while _sorted is not null
+  private int[] _sorted;
+
+  // views of the committed entries, valid while _indexed is true
+  private boolean _indexed;
+  private int _listedCount;
+  private String[] _rootNames;
+  private int[] _listed;
+  private int[] _byRoot;
+  private int[] _byRootOffsets;
+  private int[] _byType;
+  private int[] _byTypeOffsets;
+  private int[] _byRootAndType;
+  private int[] _byRootAndTypeOffsets;
+
+  void add(CommitLogEntry entry)
+  {
+    if (_size == _entries.length) {
+      final int capacity = _size * 2;
+      _entries = copyOf(_entries, capacity);
+      _rootIds = copyOf(_rootIds, capacity);
+      _typeRanks = copyOf(_typeRanks, capacity);
+    }
+    final String rootName = entry.getVcsRootName();
+    Integer rootId = _rootIdsByName.get(rootName);
+    if (rootId == null) {
+      rootId = _rootIdsByName.size();
+      _rootIdsByName.put(rootName, rootId);
+    }
+    entry.setOldVersion(intern(entry.getOldVersion()));
+    entry.setNewVersion(intern(entry.getNewVersion()));
+    _entries[_size] = entry;
+    _rootIds[_size] = rootId;
+    _typeRanks[_size] = TYPE_RANKS[entry.getChangeType().ordinal()];
+    _committed.set(_size);
+    _size++;
+    _sorted = null;
+    _indexed = false;
+  }
+
+  /**
+   * @return a single instance of the given revision string, shared by all the entries of the store.  Most files of a
+   *         commit share their old revision with others, and with atomic commits, their new revision too.
+   */
+  @Nullable
+  String intern(@Nullable String revision)
+  {
+    if (revision == null) {
+      return null;
+    }
+    final String existing = _revisions.get(revision);
+    if (existing != null) {
+      return existing;
+    }
+    _revisions.put(revision, revision);
+    return revision;
+  }
+
+  /**
+   * @return the number of entries, whether committed or not.
+   */
+  int size()
+  {
+    return _size;
+  }
+
+  /**
+   * @return the entry at the given index, in the order entries were added.
+   */
+  CommitLogEntry get(int index)
+  {
+    return _entries[index];
+  }
+
+  /**
+   * Records whether the entry at the given index was committed.  Entries are taken to be committed until recorded
+   * otherwise.
+   */
+  void setCommitted(int index, boolean committed)
+  {
+    if (_committed.get(index) != committed) {
+      _committed.set(index, committed);
+      _indexed = false;
+    }
+  }
+
+  /**
+   * @return the number of committed entries.
+   */
+  int getFileCount()
+  {
+    index();
+    return _listedCount;
+  }
+
+  /**
+   * @return the number of roots holding committed entries.
+   */
+  int getRootCount()
+  {
+    index();
+    return _rootNames.length;
+  }
+
+  /**
+   * @return the name of the root with the given index.  Roots are indexed in order of name.
+   */
+  String getRootName(int root)
+  {
+    index();
+    return _rootNames[root];
+  }
+
+  /**
+   * @param root the index of the root, or -1 for all roots.
+   * @param type the type of change, or null for all types.
+   * @return the committed entries for the given root and type, in the order they are listed.
+   */
+  Range getEntries(int root, @Nullable Change.Type type)
+  {
+    index();
+    if (type == null) {
+      return root < 0 ? new Range(_listed, 0, _listedCount) : getGroup(_byRoot, _byRootOffsets, root);
+    }
+    final int typeRank = TYPE_RANKS[type.ordinal()];
+    return root < 0 ? getGroup(_byType, _byTypeOffsets, typeRank) :
+           getGroup(_byRootAndType, _byRootAndTypeOffsets, root * TYPE_COUNT + typeRank);
+  }
+
+  /**
+   * @param root the index of the root, or -1 for all roots.
+   * @return the committed entries for the given root, grouped by change type in {@link #TYPE_ORDER}.
+   */
+  Range getEntriesInTypeOrder(int root)
+  {
+    index();
+    if (root < 0) {
+      return new Range(_byType, 0, _listedCount);
+    }
+    return new Range(_byRootAndType, _byRootAndTypeOffsets[root * TYPE_COUNT],
+                     _byRootAndTypeOffsets[(root + 1) * TYPE_COUNT]);
+  }
+
+  /**
+   * @return the number of committed entries for the root with the given index.
+   */
+  int getFileCount(int root)
+  {
+    index();
+    return _byRootOffsets[root + 1] - _byRootOffsets[root];
+  }
+
+  private Range getGroup(int[] view, int[] offsets, int group)
+  {
+    return new Range(view, offsets[group], offsets[group + 1]);
+  }
+
+  private void index()
+  {
+    if (_indexed) {
+      return;
+    }
+    if (_sorted == null) {
+      _sorted = sort();
+    }
+    _listedCount = _committed.cardinality();
+    _listed = new int[_listedCount];
+    int listed = 0;
+    for (final int index : _sorted) {
+      if (_committed.get(index)) {
+        _listed[listed++] = index;
+      }
+    }
+    // rank the roots holding committed entries by name
+    final int[] rootIdCounts = new int[_rootIdsByName.size()];
+    for (final int index : _listed) {
+      rootIdCounts[_rootIds[index]]++;
+    }
+    final SortedMap<String, Integer> rootIds = new TreeMap<String, Integer>();
+    for (final Map.Entry<String, Integer> entry : _rootIdsByName.entrySet()) {
+      if (rootIdCounts[entry.getValue()] > 0) {
+        rootIds.put(entry.getKey(), entry.getValue());
+      }
+    }
+    _rootNames = rootIds.keySet().toArray(new String[rootIds.size()]);
+    final int[] rootRanks = new int[rootIdCounts.length];
+    int rank = 0;
+    for (final Integer rootId : rootIds.values()) {
+      rootRanks[rootId] = rank++;
+    }
+    final int rootCount = _rootNames.length;
+    final int[] roots = new int[_size];
+    final int[] rootsAndTypes = new int[_size];
+    for (int i = 0; i < _size; i++) {
+      roots[i] = rootRanks[_rootIds[i]];
+      rootsAndTypes[i] = roots[i] * TYPE_COUNT + _typeRanks[i];
+    }
+    // group the listed entries by each key, keeping them in sorted order within each group
+    _byRootOffsets = new int[rootCount + 1];
+    _byRoot = group(_listed, roots, _byRootOffsets);
+    _byTypeOffsets = new int[TYPE_COUNT + 1];
+    _byType = group(_listed, _typeRanks, _byTypeOffsets);
+    _byRootAndTypeOffsets = new int[rootCount * TYPE_COUNT + 1];
+    _byRootAndType = group(_listed, rootsAndTypes, _byRootAndTypeOffsets);
+    _indexed = true;
+  }
+
+  /**
+   * @return the indexes of the entries, in the order in which they are listed.  The sort key of each entry is computed
+   *         once, and large sets of entries are sorted in parallel.
+   */
+  private int[] sort()
+  {
+    final SortKey[] keys = new SortKey[_size];
+    for (int i = 0; i < _size; i++) {
+      keys[i] = new SortKey(_entries[i].getSortKey(), i);
+    }
+    ParallelSort.sort(keys);
+    final int[] result = new int[_size];
+    for (int i = 0; i < _size; i++) {
+      result[i] = keys[i]._index;
+    }
+    return result;
+  }
+
+  /**
+   * Groups the given entry indexes by key with a counting sort, which keeps the indexes in their given order within
+   * each group.
+   *
+   * @param keys    the key of each entry, by entry index.
+   * @param offsets filled with the start of each group, followed by the end of the last.
+   */
+  private static int[] group(int[] indexes, int[] keys, int[] offsets)
+  {
+    for (final int index : indexes) {
+      offsets[keys[index] + 1]++;
+    }
+    for (int i = 1; i < offsets.length; i++) {
+      offsets[i] += offsets[i - 1];
+    }
+    final int[] next = copyOf(offsets, offsets.length - 1);
+    final int[] result = new int[indexes.length];
+    for (final int index : indexes) {
+      result[next[keys[index]]++] = index;
+    }
+    return result;
+  }
+
+  private static int[] copyOf(int[] array, int length)
+  {
+    final int[] result = new int[length];
+    System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+  private static CommitLogEntry[] copyOf(CommitLogEntry[] array, int length)
+  {
+    final CommitLogEntry[] result = new CommitLogEntry[length];
+    System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+  private static class SortKey implements Comparable<SortKey>
+  {
+    private final String _key;
+    private final int _index;
+
+    private SortKey(String key, int index)
+    {
+      _key = key;
+      _index = index;
+    }
+
+    public int compareTo(SortKey o)
+    {
+      return _key.compareTo(o._key);
+    }
+  }
+
+  /**
+   * A run of entries from one of the views of the store.
+   */
+  class Range
+  {
+    private final int[] _view;
+    private final int _start;
+    private final int _end;
+
+    private Range(int[] view, int start, int end)
+    {
+      _view = view;
+      _start = start;
+      _end = end;
+    }
+
+    int size()
+    {
+      return _end - _start;
+    }
+
+    boolean isEmpty()
+    {
+      return _end == _start;
+    }
+
+    CommitLogEntry get(int i)
+    {
+      return _entries[_view[_start + i]];
+    }
+  }
+}
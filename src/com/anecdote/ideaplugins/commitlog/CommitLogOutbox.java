@@ -0,0 +1,367 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Queues generated commit logs on disk for delivery to the post commit {@link CommitLogSink}s of a project, and
+ * delivers them from a thread of its own, so that a commit never waits on a sink.
+ * <p/>
+ * Each sink has a queue directory of its own, named by its key, holding a file per log not yet delivered to it.  A
+ * log is written under a temporary name and renamed into the queue, and deleted only once delivered, so queued logs
+ * survive a restart of the IDE, and a log is delivered at least once, but may be delivered again if the IDE stops
+ * during a delivery.  Logs are delivered oldest first, in batches, and a sink whose delivery fails is retried after a
+ * delay that doubles with each failure.  The queue of a sink that is no longer configured is kept, and delivered if
+ * the sink is configured again.
+ * <p/>
+ * As one bad log would otherwise fail every batch it is in, the batch size of a sink is halved each time the sink
+ * rejects a batch, and grows back as deliveries succeed, until the bad log is delivered on its own.  A log the sink
+ * rejects on its own is moved out of the queue into its {@link #FAILED_DIRECTORY}, so that the logs behind it are
+ * delivered.  Other failures, such as the sink being unreachable, say nothing about the logs, so the batch is kept
+ * and retried after the delay.
+ */
+class CommitLogOutbox
+{
+  private static final String ENTRY_SUFFIX = ".log";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String FAILED_MARKER = "-failed";
+  private static final int MAX_BATCH_SIZE = 20;
+  private static final String FAILED_DIRECTORY = "failed";
+  private static final long MIN_RETRY_DELAY = 10 * 1000;
+  private static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File _directory;
+  private final ScheduledExecutorService _executor;
+  // by key
+  private final Map<String, CommitLogSink> _sinks = new LinkedHashMap<String, CommitLogSink>();
+  @Nullable
+  private ScheduledFuture<?> _scheduledDelivery;
+  private long _scheduledDeliveryTime;
+  private int _lastEntryNumber;
+  // the consecutive failures and time of the next attempt of each sink that has failed
+  private final Map<String, Integer> _failures = new ConcurrentHashMap<String, Integer>();
+  private final Map<String, Long> _nextAttempts = new ConcurrentHashMap<String, Long>();
+  // the current batch size of each sink that has rejected a batch since it last delivered a full batch
+  private final Map<String, Integer> _batchSizes = new ConcurrentHashMap<String, Integer>();
+
+  CommitLogOutbox(File directory, Collection<CommitLogSink> sinks)
+  {
+    _directory = directory;
+    _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable runnable)
+      {
+        final Thread thread = new Thread(runnable, "Commit Log Outbox");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    setSinks(sinks);
+  }
+
+  /**
+   * Sets the sinks logs are queued for, delivering any logs already queued for them.
+   */
+  synchronized void setSinks(Collection<CommitLogSink> sinks)
+  {
+    _sinks.clear();
+    for (final CommitLogSink sink : sinks) {
+      _sinks.put(sink.getKey(), sink);
+    }
+    // settings may have been changed to fix a failing sink, so try again now
+    _nextAttempts.clear();
+    _failures.clear();
+    _batchSizes.clear();
+    scheduleDelivery(0);
+  }
+
+  /**
+   * Queues a commit log for delivery to each sink, returning once it is on disk.
+   */
+  void enqueue(Date date, boolean failed, CharSequence text) throws IOException
+  {
+    final Collection<CommitLogSink> sinks;
+    final String name;
+    synchronized (this) {
+      if (_sinks.isEmpty()) {
+        return;
+      }
+      sinks = new ArrayList<CommitLogSink>(_sinks.values());
+      // the time keeps names unique across sessions, and the number within one
+      name = String.format("%013d-%04d", date.getTime(), ++_lastEntryNumber % 10000) + (failed ? FAILED_MARKER : "");
+    }
+    final byte[] bytes = text.toString().getBytes(UTF8);
+    for (final CommitLogSink sink : sinks) {
+      final File queue = getQueue(sink);
+      if (!queue.isDirectory() && !queue.mkdirs()) {
+        throw new IOException("Could not create commit log outbox " + queue);
+      }
+      final File tempFile = new File(queue, name + TEMP_SUFFIX);
+      final FileOutputStream out = new FileOutputStream(tempFile);
+      try {
+        out.write(bytes);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tempFile.renameTo(new File(queue, name + ENTRY_SUFFIX))) {
+        throw new IOException("Could not queue commit log " + tempFile);
+      }
+    }
+    synchronized (this) {
+      scheduleDelivery(0);
+    }
+  }
+
+  /**
+   * Stops delivering logs.  A delivery in progress is interrupted, and its logs delivered again when the outbox is
+   * next opened.
+   */
+  void close()
+  {
+    _executor.shutdownNow();
+  }
+
+  private File getQueue(CommitLogSink sink)
+  {
+    return new File(_directory, sink.getKey());
+  }
+
+  /**
+   * Schedules a delivery after the given delay, unless one is already scheduled sooner.  Must hold the lock.
+   */
+  private void scheduleDelivery(long delay)
+  {
+    final long time = System.currentTimeMillis() + delay;
+    if (_scheduledDelivery != null && _scheduledDeliveryTime <= time || _executor.isShutdown()) {
+      return;
+    }
+    if (_scheduledDelivery != null) {
+      _scheduledDelivery.cancel(false);
+    }
+    _scheduledDeliveryTime = time;
+    _scheduledDelivery = _executor.schedule(new Runnable()
+    {
+      public void run()
+      {
+        deliver();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Delivers a batch of logs to each sink that is due, then schedules the next delivery if any logs remain.
+   */
+  private void deliver()
+  {
+    final List<CommitLogSink> sinks;
+    synchronized (this) {
+      // logs queued from now on are delivered by another delivery
+      _scheduledDelivery = null;
+      sinks = new ArrayList<CommitLogSink>(_sinks.values());
+    }
+    long nextDelivery = Long.MAX_VALUE;
+    for (final CommitLogSink sink : sinks) {
+      final Long nextAttempt = _nextAttempts.get(sink.getKey());
+      if (nextAttempt != null && nextAttempt > System.currentTimeMillis()) {
+        nextDelivery = Math.min(nextDelivery, nextAttempt);
+        continue;
+      }
+      final List<Entry> entries = getEntries(getQueue(sink));
+      if (entries.isEmpty()) {
+        continue;
+      }
+      final Integer batchSize = _batchSizes.get(sink.getKey());
+      final List<Entry> batch = entries.subList(0, Math.min(entries.size(),
+                                                            batchSize != null ? batchSize : MAX_BATCH_SIZE));
+      Throwable failure = null;
+      try {
+        sink.deliver(batch);
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+      if (failure == null) {
+        for (final Entry entry : batch) {
+          if (!entry.getFile().delete()) {
+            CommitLogProjectComponent.log("Could not remove delivered commit log " + entry.getFile());
+          }
+        }
+        _failures.remove(sink.getKey());
+        _nextAttempts.remove(sink.getKey());
+        if (batchSize != null) {
+          if (batchSize * 2 < MAX_BATCH_SIZE) {
+            _batchSizes.put(sink.getKey(), batchSize * 2);
+          } else {
+            _batchSizes.remove(sink.getKey());
+          }
+        }
+        if (entries.size() > batch.size()) {
+          nextDelivery = System.currentTimeMillis();
+        }
+      } else {
+        if (Thread.currentThread().isInterrupted()) {
+          // closed
+          return;
+        }
+        final Integer previousFailures = _failures.get(sink.getKey());
+        final int failures = previousFailures != null ? previousFailures + 1 : 1;
+        final boolean permanent = failure instanceof CommitLogSink.PermanentFailure;
+        if (permanent && batch.size() == 1) {
+          // the log is rejected on its own, so set it aside and carry on with the rest of the queue
+          setAside(sink, batch.get(0), failure);
+          _failures.remove(sink.getKey());
+          _nextAttempts.remove(sink.getKey());
+          nextDelivery = System.currentTimeMillis();
+        } else if (permanent) {
+          // one of the logs was rejected, so retry at once in smaller batches to find it
+          _batchSizes.put(sink.getKey(), batch.size() / 2);
+          nextDelivery = System.currentTimeMillis();
+          CommitLogProjectComponent.log("Delivery of " + batch.size() + " commit logs to " + sink.getKey() +
+                                        " was rejected, retrying in batches of " + batch.size() / 2 + " : " +
+                                        failure);
+        } else {
+          final long delay = Math.min(MIN_RETRY_DELAY << Math.min(failures - 1, 20), MAX_RETRY_DELAY);
+          _failures.put(sink.getKey(), failures);
+          _nextAttempts.put(sink.getKey(), System.currentTimeMillis() + delay);
+          nextDelivery = Math.min(nextDelivery, System.currentTimeMillis() + delay);
+          CommitLogProjectComponent.log("Delivery of " + batch.size() + " commit logs to " + sink.getKey() +
+                                        " failed, retrying in " + delay / 1000 + " seconds : " + failure);
+        }
+      }
+    }
+    if (nextDelivery != Long.MAX_VALUE) {
+      synchronized (this) {
+        scheduleDelivery(Math.max(nextDelivery - System.currentTimeMillis(), 0));
+      }
+    }
+  }
+
+  /**
+   * Moves a log that cannot be delivered to the given sink out of its queue, into the failed directory of the queue,
+   * where it is kept for the user to deal with.
+   */
+  private void setAside(CommitLogSink sink, Entry entry, Throwable failure)
+  {
+    final File failedDirectory = new File(getQueue(sink), FAILED_DIRECTORY);
+    final File failedFile = new File(failedDirectory, entry.getFile().getName());
+    if ((failedDirectory.isDirectory() || failedDirectory.mkdirs()) && entry.getFile().renameTo(failedFile)) {
+      CommitLogProjectComponent.log("Gave up delivering commit log " + entry.getName() + " to " + sink.getKey() +
+                                    ", and moved it to " + failedFile + " : " + failure);
+    } else {
+      CommitLogProjectComponent.log("Gave up delivering commit log " + entry.getName() + " to " + sink.getKey() +
+                                    ", but could not move it out of the queue, so removed it : " + failure);
+      entry.getFile().delete();
+    }
+  }
+
+  /**
+   * @return the logs in the given queue, oldest first.  Temporary files left by a crash while queueing are removed.
+   */
+  private static List<Entry> getEntries(File queue)
+  {
+    final File[] files = queue.listFiles();
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    final List<Entry> result = new ArrayList<Entry>(files.length);
+    for (final File file : files) {
+      if (file.getName().endsWith(ENTRY_SUFFIX)) {
+        result.add(new Entry(file));
+      } else if (file.getName().endsWith(TEMP_SUFFIX) &&
+                 file.lastModified() < System.currentTimeMillis() - MAX_RETRY_DELAY) {
+        file.delete();
+      }
+    }
+    Collections.sort(result, new Comparator<Entry>()
+    {
+      public int compare(Entry entry1, Entry entry2)
+      {
+        return entry1.getName().compareTo(entry2.getName());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * A log queued for delivery to a sink.
+   */
+  static class Entry
+  {
+    private final File _file;
+    private final String _name;
+
+    private Entry(File file)
+    {
+      _file = file;
+      _name = file.getName().substring(0, file.getName().length() - ENTRY_SUFFIX.length());
+    }
+
+    /**
+     * @return the file holding the text of the log, as UTF-8.
+     */
+    File getFile()
+    {
+      return _file;
+    }
+
+    /**
+     * @return the name of the log, which is the same in the queue of every sink.
+     */
+    String getName()
+    {
+      return _name;
+    }
+
+    /**
+     * @return the date the log was generated.
+     */
+    Date getDate()
+    {
+      final int end = _name.indexOf('-');
+      try {
+        return new Date(Long.parseLong(end >= 0 ? _name.substring(0, end) : _name));
+      } catch (NumberFormatException e) {
+        return new Date(_file.lastModified());
+      }
+    }
+
+    boolean isFailed()
+    {
+      return _name.endsWith(FAILED_MARKER);
+    }
+
+    String getText() throws IOException
+    {
+      final byte[] bytes = new byte[(int)_file.length()];
+      final DataInputStream in = new DataInputStream(new FileInputStream(_file));
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      return new String(bytes, UTF8);
+    }
+  }
+}
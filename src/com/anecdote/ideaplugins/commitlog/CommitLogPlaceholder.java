@@ -0,0 +1,339 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.vcs.changes.Change;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.DateFormat;
+import java.util.*;
+
+/**
+ * The registry of placeholders understood by commit log templates.  Template placeholders are bound to these constants
+ * once, when the template is compiled, so rendering never has to compare placeholder names.
+ */
+enum CommitLogPlaceholder
+{
+  // value placeholders
+  TIME("TIME", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return DateFormat.getTimeInstance().format(context.getDate());
+    }
+  },
+  DATE("DATE", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return DateFormat.getDateInstance().format(context.getDate());
+    }
+  },
+  DATE_TIME("DATE_TIME", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return DateFormat.getDateTimeInstance().format(context.getDate());
+    }
+  },
+  FILE_COUNT("FILE_COUNT", EnumSet.of(Scope.TEMPLATE, Scope.ROOTS_SECTION, Scope.ROOT_ENTRY, Scope.FILES_SECTION,
+                                      Scope.ISSUE_ENTRY))
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return String.valueOf(context.getFileCount());
+    }
+  },
+  ROOT_COUNT("ROOT_COUNT", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return String.valueOf(context.getBuilder().getRootCount());
+    }
+  },
+  ROOT_LIST("ROOT_LIST", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getBuilder().getRootList();
+    }
+  },
+  COMMIT_MESSAGE("COMMIT_MESSAGE", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getBuilder().getCommitMessage();
+    }
+  },
+  ISSUE_IDS("ISSUE_IDS", Scope.COMMON)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      final StringBuilder result = new StringBuilder();
+      for (final String issueId : context.getIssueIds()) {
+        if (result.length() > 0) {
+          result.append(", ");
+        }
+        result.append(issueId);
+      }
+      return result.toString();
+    }
+  },
+  ISSUE_ID("ISSUE_ID", Scope.ISSUE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getIssueId();
+    }
+  },
+  ROOT_NAME("ROOT_NAME", EnumSet.of(Scope.ROOT_ENTRY, Scope.FILE_ENTRY))
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      final CommitLogEntry entry = context.getEntry();
+      return entry != null ? entry.getVcsRootName() : context.getRootName();
+    }
+  },
+  FILE_NAME("FILE_NAME", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getEntry().getName();
+    }
+  },
+  FILE_PATH("FILE_PATH", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getEntry().getPath();
+    }
+  },
+  FILE_ACTION("FILE_ACTION", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      final Change.Type type = context.getEntry().getChangeType();
+      if (type == Change.Type.DELETED) {
+        return "Removed";
+      } else if (type == Change.Type.MODIFICATION) {
+        return "Modified";
+      } else if (type == Change.Type.NEW) {
+        return "Added";
+      }
+      return getPlaceholderName();
+    }
+  },
+  PACKAGE_NAME("PACKAGE_NAME", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getEntry().getPackageName();
+    }
+  },
+  PATH_FROM_ROOT("PATH_FROM_ROOT", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getEntry().getPathFromRoot();
+    }
+  },
+  /**
+   * Retained for templates written before PATH_FROM_ROOT replaced it.
+   */
+  PACKAGE_PATH("PACKAGE_PATH", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      return context.getEntry().getPathFromRoot();
+    }
+  },
+  OLD_REVISION_NUMBER("OLD_REVISION_NUMBER", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      final CommitLogEntry entry = context.getEntry();
+      if (entry.getOldVersion() == null || entry.getChangeType() == Change.Type.NEW) {
+        return "Added";
+      }
+      return entry.getOldVersion();
+    }
+  },
+  NEW_REVISION_NUMBER("NEW_REVISION_NUMBER", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      final CommitLogEntry entry = context.getEntry();
+      if (entry.getChangeType() == Change.Type.DELETED) {
+        return "Removed";
+      }
+      if (entry.isNewVersionUnresolved()) {
+        return "Unresolved";
+      }
+      if (entry.getNewVersion() == null) {
+        return "Removed";
+      }
+      return entry.getNewVersion();
+    }
+  },
+  CHANGE_SYMBOL("CHANGE_SYMBOL", Scope.FILE_ENTRY)
+  {
+    String getValue(CommitLogBuilder.RenderContext context)
+    {
+      final CommitLogEntry entry = context.getEntry();
+      if (entry.getOldVersion() == null || entry.getChangeType() == Change.Type.NEW) {
+        return "+";
+      } else if (entry.getChangeType() == Change.Type.DELETED) {
+        return "-";
+      }
+      return "*";
+    }
+  },
+
+  // block placeholders
+  ROOTS_SECTION("ROOTS_SECTION", EnumSet.of(Scope.TEMPLATE), Scope.ROOTS_SECTION, null),
+  ROOT_ENTRY("ROOT_ENTRY", EnumSet.of(Scope.ROOTS_SECTION), Scope.ROOT_ENTRY, null),
+  DELETED_FILES("DELETED_FILES", Scope.FILES_SECTION_PARENTS, Scope.FILES_SECTION, Change.Type.DELETED),
+  MODIFIED_FILES("MODIFIED_FILES", Scope.FILES_SECTION_PARENTS, Scope.FILES_SECTION, Change.Type.MODIFICATION),
+  ADDED_FILES("ADDED_FILES", Scope.FILES_SECTION_PARENTS, Scope.FILES_SECTION, Change.Type.NEW),
+  ALL_FILES("ALL_FILES", Scope.FILES_SECTION_PARENTS, Scope.FILES_SECTION, null),
+  ALL_FILES_BY_TYPE("ALL_FILES_BY_TYPE", Scope.FILES_SECTION_PARENTS, Scope.FILES_SECTION, null),
+  FILE_ENTRY("FILE_ENTRY", EnumSet.of(Scope.FILES_SECTION), Scope.FILE_ENTRY, null),
+  ISSUE_ENTRY("ISSUE_ENTRY", EnumSet.of(Scope.TEMPLATE), Scope.ISSUE_ENTRY, null);
+
+  /**
+   * The parts of a template in which placeholders may appear.
+   */
+  enum Scope
+  {
+    TEMPLATE, ROOTS_SECTION, ROOT_ENTRY, FILES_SECTION, FILE_ENTRY, ISSUE_ENTRY;
+
+    private static final Set<Scope> COMMON = EnumSet.of(TEMPLATE, ROOTS_SECTION, ROOT_ENTRY, ISSUE_ENTRY);
+    private static final Set<Scope> FILES_SECTION_PARENTS = EnumSet.of(TEMPLATE, ROOT_ENTRY);
+  }
+
+  private static final Map<String, CommitLogPlaceholder> PLACEHOLDERS_BY_NAME =
+    new HashMap<String, CommitLogPlaceholder>();
+
+  static {
+    for (CommitLogPlaceholder placeholder : values()) {
+      PLACEHOLDERS_BY_NAME.put(placeholder._placeholderName, placeholder);
+    }
+  }
+
+  private final String _placeholderName;
+  private final Set<Scope> _validScopes;
+  @Nullable
+  private final Scope _blockScope;
+  @Nullable
+  private final Change.Type _changeType;
+
+  CommitLogPlaceholder(String name, Scope validScope)
+  {
+    this(name, EnumSet.of(validScope), null, null);
+  }
+
+  CommitLogPlaceholder(String name, Set<Scope> validScopes)
+  {
+    this(name, validScopes, null, null);
+  }
+
+  CommitLogPlaceholder(String name, Set<Scope> validScopes, @Nullable Scope blockScope,
+                       @Nullable Change.Type changeType)
+  {
+    _placeholderName = name;
+    _validScopes = validScopes;
+    _blockScope = blockScope;
+    _changeType = changeType;
+  }
+
+  /**
+   * @return the name of the placeholder as written in templates.
+   */
+  String getPlaceholderName()
+  {
+    return _placeholderName;
+  }
+
+  /**
+   * @return the placeholder with the given name, or null if there is no such placeholder.
+   */
+  @Nullable
+  static CommitLogPlaceholder forName(String name)
+  {
+    return PLACEHOLDERS_BY_NAME.get(name);
+  }
+
+  boolean isBlock()
+  {
+    return _blockScope != null;
+  }
+
+  boolean isValidIn(Scope scope)
+  {
+    return _validScopes.contains(scope);
+  }
+
+  /**
+   * @return the scope of the content of this block placeholder, or null if this is a value placeholder.
+   */
+  @Nullable
+  Scope getBlockScope()
+  {
+    return _blockScope;
+  }
+
+  /**
+   * @return the type of change listed by this files section placeholder, or null if it lists all changes.
+   */
+  @Nullable
+  Change.Type getChangeType()
+  {
+    return _changeType;
+  }
+
+  /**
+   * @return the entry attributes that must be collected for this placeholder to be rendered.
+   */
+  Set<CommitLogEntry.Attribute> getRequiredAttributes()
+  {
+    switch (this) {
+      case ROOT_COUNT:
+      case ROOT_LIST:
+      case ROOT_NAME:
+      case ROOTS_SECTION:
+      case ROOT_ENTRY:
+        return EnumSet.of(CommitLogEntry.Attribute.VCS_ROOT);
+      case PATH_FROM_ROOT:
+      case PACKAGE_PATH:
+        return EnumSet.of(CommitLogEntry.Attribute.VCS_ROOT, CommitLogEntry.Attribute.PATH_FROM_ROOT);
+      case PACKAGE_NAME:
+        return EnumSet.of(CommitLogEntry.Attribute.PACKAGE_NAME);
+      case NEW_REVISION_NUMBER:
+        // revisions are looked up root by root
+        return EnumSet.of(CommitLogEntry.Attribute.VCS_ROOT, CommitLogEntry.Attribute.NEW_REVISION);
+      default:
+        return EnumSet.noneOf(CommitLogEntry.Attribute.class);
+    }
+  }
+
+  /**
+   * Resolves the value of this value placeholder in the given context.
+   */
+  String getValue(CommitLogBuilder.RenderContext context)
+  {
+    throw new UnsupportedOperationException(_placeholderName + " is not a value placeholder");
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.components.*;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.xmlb.XmlSerializerUtil;
+
+/**
+ * The post commit actions of a project.  As these run commands and send logs off the machine, they are kept in the
+ * workspace file, which is not shared, rather than in the project file with the other settings, so that checking out
+ * a project never runs a command or posts to a URL set by someone else.
+ */
+@State(name = CommitLogPostCommitSettings.COMPONENT_NAME,
+       storages = {@Storage(id = "COMMIT_LOG_PLUGIN_WORKSPACE", file = "$WORKSPACE_FILE$")})
+public class CommitLogPostCommitSettings
+  implements ProjectComponent, PersistentStateComponent<CommitLogPostCommitSettings>
+{
+  public static final String COMPONENT_NAME = "CommitLogPostCommitSettings";
+
+  private String _command = "";
+  private String _dropDirectory = "";
+  private String _url = "";
+
+  static CommitLogPostCommitSettings getInstance(Project project)
+  {
+    return project.getComponent(CommitLogPostCommitSettings.class);
+  }
+
+  public void initComponent()
+  {
+  }
+
+  public void disposeComponent()
+  {
+  }
+
+  public String getComponentName()
+  {
+    return COMPONENT_NAME;
+  }
+
+  public void projectOpened()
+  {
+  }
+
+  public void projectClosed()
+  {
+  }
+
+  public CommitLogPostCommitSettings getState()
+  {
+    return this;
+  }
+
+  public void loadState(CommitLogPostCommitSettings state)
+  {
+    XmlSerializerUtil.copyBean(state, this);
+  }
+
+  /**
+   * @return the command run with the files of generated commit logs as arguments after each commit, or an empty string
+   *         for none.
+   */
+  public String getCommand()
+  {
+    return _command;
+  }
+
+  public void setCommand(String command)
+  {
+    _command = command != null ? command : "";
+  }
+
+  /**
+   * @return the directory generated commit logs are copied into after each commit, or an empty string for none.
+   */
+  public String getDropDirectory()
+  {
+    return _dropDirectory;
+  }
+
+  public void setDropDirectory(String dropDirectory)
+  {
+    _dropDirectory = dropDirectory != null ? dropDirectory : "";
+  }
+
+  /**
+   * @return the URL generated commit logs are posted to after each commit, or an empty string for none.
+   */
+  public String getUrl()
+  {
+    return _url;
+  }
+
+  public void setUrl(String url)
+  {
+    _url = url != null ? url : "";
+  }
+}
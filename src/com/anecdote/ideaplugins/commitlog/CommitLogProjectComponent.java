@@ -20,16 +20,21 @@ import com.intellij.openapi.components.*;
 import com.intellij.openapi.options.Configurable;
 import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.openapi.vcs.CheckinProjectPanel;
 import com.intellij.openapi.vcs.ProjectLevelVcsManager;
 import com.intellij.openapi.vcs.checkin.CheckinHandler;
 import com.intellij.openapi.vcs.checkin.CheckinHandlerFactory;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.xmlb.XmlSerializerUtil;
 import org.jetbrains.annotations.*;
 
 import javax.swing.*;
 import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
 
 @State(name = CommitLogProjectComponent.COMPONENT_NAME,
        storages = {@Storage(id = "COMMIT_LOG_PLUGIN", file = "$PROJECT_FILE$")})
@@ -39,6 +44,12 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
   private ProjectLevelVcsManager _vcsManager;
   private final Project _project;
   private CommitLogWindow _commitLogWindow;
+  private CommitLogChangeModel _changeModel;
+  private CommitLogArchive _commitLogArchive;
+  private CommitLogCompressor _commitLogCompressor;
+  private String _commitLogCompressorTemplateText;
+  private CommitLogSearchIndex _commitLogSearchIndex;
+  private CommitLogOutbox _commitLogOutbox;
   private String _textualCommitLogTemplate;
   private String _textualCommitCommentTemplate;
   static final String DEFAULT_COMMIT_LOG_TEMPLATE_RESOURCE = "/resources/DefaultCommitLogTemplate.txt";
@@ -51,9 +62,28 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
   public static final String COMPONENT_NAME = "CommitLogProjectComponent";
   private CommitLogConfigurationPanel _configurationPanel;
   private boolean _generateTextualCommitLog = true;
+  private int _revisionLookupBudgetSeconds = 120;
+  private int _vcsLookupTimeoutSeconds = 60;
+  private int _maxCommitLogTabs = 20;
+  private String _issueIdPrefixes = "";
+  private boolean _findIssueIdsInFilePaths;
+  // the matcher compiled from the issue id prefixes, and the prefixes it was compiled from
+  private IssueIdMatcher _issueIdMatcher;
+  private String _issueIdMatcherPrefixes;
   public static final String VERSION = "1.2.1";
   private static AnAction _generateCommentAction;
+  private static AnAction _searchCommitLogsAction;
   private boolean _focusCommentTemplateEditor;
+  private static final int MAX_COMPILED_TEMPLATES = 8;
+  private final Map<String, CompiledCommitLogTemplate> _compiledTemplates =
+    new LinkedHashMap<String, CompiledCommitLogTemplate>(MAX_COMPILED_TEMPLATES * 2, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CompiledCommitLogTemplate> eldest)
+      {
+        return size() > MAX_COMPILED_TEMPLATES;
+      }
+    };
 
   public CommitLogProjectComponent()
   {
@@ -81,6 +111,14 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
         actionGroup.add(_generateCommentAction, Constraints.FIRST);
       }
     }
+    if (_searchCommitLogsAction == null) {
+      _searchCommitLogsAction = new SearchCommitLogsAction();
+      ActionManager.getInstance().registerAction("CommitLogPlugin.SearchCommitLogs", _searchCommitLogsAction);
+      DefaultActionGroup actionGroup = (DefaultActionGroup)ActionManager.getInstance().getAction("VcsGlobalGroup");
+      if (actionGroup != null) {
+        actionGroup.add(_searchCommitLogsAction, Constraints.LAST);
+      }
+    }
   }
 
   public void disposeComponent()
@@ -96,12 +134,29 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
 
   public void projectOpened()
   {
-    // called when project is opened
+    _changeModel = new CommitLogChangeModel(_project);
+    _changeModel.install();
+    // delivers any logs left queued by the last session
+    updateCommitLogOutbox();
   }
 
   public void projectClosed()
   {
-    // called when project is being closed
+    if (_changeModel != null) {
+      Disposer.dispose(_changeModel);
+      _changeModel = null;
+    }
+    synchronized (this) {
+      if (_commitLogOutbox != null) {
+        _commitLogOutbox.close();
+        _commitLogOutbox = null;
+      }
+      if (_commitLogArchive != null) {
+        _commitLogArchive.close();
+        _commitLogArchive = null;
+        _commitLogSearchIndex = null;
+      }
+    }
   }
 
   @Override
@@ -119,13 +174,166 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
   public CommitLogWindow getCommitLogWindow()
   {
     if (_commitLogWindow == null) {
-      _commitLogWindow = new CommitLogWindow(_project);
+      _commitLogWindow = new CommitLogWindow(this);
     }
     return _commitLogWindow;
   }
 
+  /**
+   * @return the archive of the commit logs generated for the project.
+   */
+  synchronized CommitLogArchive getCommitLogArchive()
+  {
+    if (_commitLogArchive == null) {
+      _commitLogArchive = new CommitLogArchive(CommitLogArchive.getArchiveDirectory(_project));
+    }
+    return _commitLogArchive;
+  }
+
+  /**
+   * @return the search index of the commit log archive.
+   */
+  synchronized CommitLogSearchIndex getCommitLogSearchIndex()
+  {
+    if (_commitLogSearchIndex == null) {
+      _commitLogSearchIndex = new CommitLogSearchIndex(CommitLogArchive.getArchiveDirectory(_project),
+                                                       getCommitLogArchive());
+    }
+    return _commitLogSearchIndex;
+  }
+
+  /**
+   * @return the post commit actions of the project, which are kept apart from the other settings as they are not
+   *         shared.
+   */
+  CommitLogPostCommitSettings getPostCommitSettings()
+  {
+    return CommitLogPostCommitSettings.getInstance(_project);
+  }
+
+  /**
+   * @return the sinks generated commit logs are delivered to after each commit, as configured.
+   */
+  List<CommitLogSink> getPostCommitSinks()
+  {
+    final CommitLogPostCommitSettings settings = getPostCommitSettings();
+    final List<CommitLogSink> result = new ArrayList<CommitLogSink>(3);
+    if (settings.getCommand().trim().length() > 0) {
+      final VirtualFile baseDir = _project.getBaseDir();
+      result.add(new CommitLogSink.Command(settings.getCommand().trim(),
+                                           baseDir != null ? new File(baseDir.getPath()) : null));
+    }
+    if (settings.getDropDirectory().trim().length() > 0) {
+      result.add(new CommitLogSink.DropDirectory(new File(settings.getDropDirectory().trim())));
+    }
+    if (settings.getUrl().trim().length() > 0) {
+      try {
+        result.add(new CommitLogSink.Http(new URL(settings.getUrl().trim())));
+      } catch (MalformedURLException e) {
+        log("Ignoring post commit URL " + settings.getUrl() + " : " + e.getMessage());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Passes the configured sinks to the outbox, creating it once there are sinks to deliver to.
+   */
+  synchronized void updateCommitLogOutbox()
+  {
+    final List<CommitLogSink> sinks = getPostCommitSinks();
+    if (_commitLogOutbox != null) {
+      _commitLogOutbox.setSinks(sinks);
+    } else if (!sinks.isEmpty()) {
+      _commitLogOutbox = new CommitLogOutbox(new File(CommitLogArchive.getArchiveDirectory(_project), "outbox"),
+                                             sinks);
+    }
+  }
+
+  /**
+   * Queues a generated commit log for delivery to the configured sinks, without waiting for any of them.
+   */
+  void queuePostCommitActions(Date date, boolean failed, CharSequence commitLog)
+  {
+    final CommitLogOutbox outbox;
+    synchronized (this) {
+      outbox = _commitLogOutbox;
+    }
+    if (outbox != null) {
+      try {
+        outbox.enqueue(date, failed, commitLog);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Sets the matcher with which the given builder finds the issue ids of its commit, compiling the configured prefixes
+   * only if they have changed since last used.
+   */
+  void setIssueIdMatcher(CommitLogBuilder commitLogBuilder)
+  {
+    final IssueIdMatcher issueIdMatcher;
+    synchronized (this) {
+      if (!_issueIdPrefixes.equals(_issueIdMatcherPrefixes)) {
+        _issueIdMatcher = IssueIdMatcher.compile(_issueIdPrefixes);
+        _issueIdMatcherPrefixes = _issueIdPrefixes;
+      }
+      issueIdMatcher = _issueIdMatcher;
+    }
+    final VirtualFile baseDir = _project.getBaseDir();
+    commitLogBuilder.setIssueIdMatcher(issueIdMatcher, _findIssueIdsInFilePaths,
+                                       baseDir != null ? baseDir.getPath() : null);
+  }
+
+  /**
+   * @return the compressor for commit logs generated with the current template, whose dictionary is the literal text
+   *         of the template.
+   */
+  CommitLogCompressor getCommitLogCompressor()
+  {
+    final String templateText = getTextualCommitLogTemplate();
+    synchronized (this) {
+      if (_commitLogCompressor == null || !templateText.equals(_commitLogCompressorTemplateText)) {
+        try {
+          _commitLogCompressor = CommitLogCompressor.forTemplate(getCompiledTemplate(templateText));
+        } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+          _commitLogCompressor = CommitLogCompressor.forText(templateText);
+        }
+        _commitLogCompressorTemplateText = templateText;
+      }
+      return _commitLogCompressor;
+    }
+  }
+
+  /**
+   * Archives a generated commit log, and indexes it for searching.
+   */
+  void archiveCommitLog(Date date, CommitLogBuilder commitLogBuilder, boolean failed, byte[] compressedCommitLog,
+                        CommitLogCompressor compressor)
+  {
+    final CommitLogSearchIndex searchIndex = getCommitLogSearchIndex();
+    final CommitLogChangeModel changeModel = _changeModel;
+    final Set<String> terms =
+      CommitLogSearchIndex.getTerms(commitLogBuilder, changeModel != null ? changeModel.getDirectoryCache() : null);
+    try {
+      // holding the index while archiving keeps searches from indexing the log from its text in between
+      synchronized (searchIndex) {
+        final int sequence = getCommitLogArchive().append(date, commitLogBuilder.getChangeListName(), failed,
+                                                          commitLogBuilder.getRootNames(),
+                                                          commitLogBuilder.getFileCount(), compressedCommitLog,
+                                                          compressor);
+        searchIndex.add(sequence, terms);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   public void setTextualCommitLogTemplate(String text)
   {
+    invalidateCompiledTemplate(_textualCommitLogTemplate, text);
     _textualCommitLogTemplate = text;
   }
 
@@ -139,12 +347,73 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
 
   public void resetCommitLogTemplate()
   {
-    _textualCommitLogTemplate = DEFAULT_COMMIT_LOG_TEMPLATE;
+    setTextualCommitLogTemplate(DEFAULT_COMMIT_LOG_TEMPLATE);
   }
 
   public void resetCommitCommentTemplate()
   {
-    _textualCommitCommentTemplate = DEFAULT_COMMIT_COMMENT_TEMPLATE;
+    setTextualCommitCommentTemplate(DEFAULT_COMMIT_COMMENT_TEMPLATE);
+  }
+
+  /**
+   * @return the compiled form of the current commit log template, parsing it only if it has changed since last used.
+   */
+  @NotNull
+  CompiledCommitLogTemplate getCompiledCommitLogTemplate() throws CommitLogTemplateParser.TextTemplateParserException
+  {
+    return getCompiledTemplate(getTextualCommitLogTemplate());
+  }
+
+  /**
+   * @return the compiled form of the current commit comment template, parsing it only if it has changed since last
+   *         used.
+   */
+  @NotNull
+  CompiledCommitLogTemplate getCompiledCommitCommentTemplate()
+    throws CommitLogTemplateParser.TextTemplateParserException
+  {
+    return getCompiledTemplate(getTextualCommitCommentTemplate());
+  }
+
+  /**
+   * Returns the compiled form of the given template text, which is cached by text so that unchanged templates are
+   * never parsed twice.  Templates that fail to parse are not cached.
+   */
+  @NotNull
+  CompiledCommitLogTemplate getCompiledTemplate(@NotNull String templateText)
+    throws CommitLogTemplateParser.TextTemplateParserException
+  {
+    synchronized (_compiledTemplates) {
+      CompiledCommitLogTemplate result = _compiledTemplates.get(templateText);
+      if (result == null) {
+        result = CompiledCommitLogTemplate.compile(templateText);
+        _compiledTemplates.put(templateText, result);
+      }
+      return result;
+    }
+  }
+
+  private void invalidateCompiledTemplate(@Nullable String oldText, @Nullable String newText)
+  {
+    if (oldText != null && !oldText.equals(newText)) {
+      synchronized (_compiledTemplates) {
+        _compiledTemplates.remove(oldText);
+      }
+    }
+  }
+
+  /**
+   * @return a cache of the attributes of changed directories, for building a commit log with the given template.  The
+   *         cache is shared with the change model while the project is open, so most directories will already have
+   *         been resolved.
+   */
+  ChangedDirectoryCache getDirectoryCache(CompiledCommitLogTemplate template)
+  {
+    final CommitLogChangeModel changeModel = _changeModel;
+    if (changeModel != null) {
+      return changeModel.getDirectoryCache(template);
+    }
+    return new ChangedDirectoryCache(_project, template.getRequiredAttributes());
   }
 
   public static String readResourceAsString(String resourceName)
@@ -227,6 +496,7 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
   public void apply() throws ConfigurationException
   {
     _configurationPanel.save();
+    updateCommitLogOutbox();
   }
 
   public void reset()
@@ -259,6 +529,73 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
     return _generateTextualCommitLog;
   }
 
+  /**
+   * @return the time allowed for looking up the revisions of all the files of a commit, after which the commit log is
+   *         generated with the revisions not yet found marked unresolved.
+   */
+  public int getRevisionLookupBudgetSeconds()
+  {
+    return _revisionLookupBudgetSeconds;
+  }
+
+  public void setRevisionLookupBudgetSeconds(int revisionLookupBudgetSeconds)
+  {
+    _revisionLookupBudgetSeconds = revisionLookupBudgetSeconds;
+  }
+
+  /**
+   * @return the time allowed for looking up the revisions of the files under any one VCS root.
+   */
+  public int getVcsLookupTimeoutSeconds()
+  {
+    return _vcsLookupTimeoutSeconds;
+  }
+
+  public void setVcsLookupTimeoutSeconds(int vcsLookupTimeoutSeconds)
+  {
+    _vcsLookupTimeoutSeconds = vcsLookupTimeoutSeconds;
+  }
+
+  /**
+   * @return the number of commit logs kept open in the commit log window, beyond which the least recently selected
+   *         unpinned logs are closed.
+   */
+  public int getMaxCommitLogTabs()
+  {
+    return _maxCommitLogTabs;
+  }
+
+  public void setMaxCommitLogTabs(int maxCommitLogTabs)
+  {
+    _maxCommitLogTabs = maxCommitLogTabs;
+  }
+
+  /**
+   * @return the prefixes of the issue ids to find in commits, separated by commas, e.g. "PROJ-, BUG #".
+   */
+  public String getIssueIdPrefixes()
+  {
+    return _issueIdPrefixes;
+  }
+
+  public void setIssueIdPrefixes(String issueIdPrefixes)
+  {
+    _issueIdPrefixes = issueIdPrefixes != null ? issueIdPrefixes : "";
+  }
+
+  /**
+   * @return whether issue ids are looked for in the paths of the committed files, as well as in the commit message.
+   */
+  public boolean isFindIssueIdsInFilePaths()
+  {
+    return _findIssueIdsInFilePaths;
+  }
+
+  public void setFindIssueIdsInFilePaths(boolean findIssueIdsInFilePaths)
+  {
+    _findIssueIdsInFilePaths = findIssueIdsInFilePaths;
+  }
+
   @SuppressWarnings({"SSBasedInspection"})
   public static void log(String s)
   {
@@ -275,6 +612,7 @@ public class CommitLogProjectComponent extends CheckinHandlerFactory
 
   public void setTextualCommitCommentTemplate(String textualCommitCommentTemplate)
   {
+    invalidateCompiledTemplate(_textualCommitCommentTemplate, textualCommitCommentTemplate);
     _textualCommitCommentTemplate = textualCommitCommentTemplate;
   }
 
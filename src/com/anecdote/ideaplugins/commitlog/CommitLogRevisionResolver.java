@@ -0,0 +1,477 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.diff.DiffProvider;
+import com.intellij.openapi.vcs.diff.ItemLatestState;
+import com.intellij.openapi.vcs.history.*;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.vcsUtil.VcsUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up the revisions of the files of a commit once the commit is done.  Each lookup may mean running a VCS
+ * command or a call to a server, so lookups run concurrently on pooled threads, with at most
+ * {@link #MAX_LOOKUPS_PER_ROOT} lookups running against any one VCS root, and at most {@link #MAX_LOOKUPS} running at
+ * once across all roots and commits, however many roots a commit touches or commits are in progress.  A lookup
+ * abandoned at its deadline keeps its place against both limits until it actually finishes.  The revisions found are applied to the
+ * entries in entry order once all lookups are done, so the resulting log does not depend on the order in which the
+ * lookups finished.
+ * <p/>
+ * For VCSs that commit atomically, all the files committed under a root get the same revision, which is then looked up
+ * for just one of them - see {@link RevisionStrategy}.
+ * <p/>
+ * Lookups are given a time budget overall, and a timeout for the lookups against each VCS root.  Lookups still running
+ * when their time is up, or when the progress indicator is cancelled, are abandoned, and the revisions they were
+ * looking up are marked unresolved.
+ */
+class CommitLogRevisionResolver
+{
+  private static final int MAX_LOOKUPS_PER_ROOT = 4;
+  private static final int MAX_LOOKUPS = 8;
+  // shared by the lookups of all commits
+  private static final Semaphore LOOKUP_PERMITS = new Semaphore(MAX_LOOKUPS);
+  private static final long POLL_INTERVAL_MILLIS = 100;
+
+  private final Project _project;
+  private final CommitLogBuilder _builder;
+  private final ProgressIndicator _indicator;
+  private final long _deadline;
+  private final long _rootTimeout;
+  private final String[] _versions;
+  private final boolean[] _resolved;
+  private int _resolvedCount;
+  private boolean _closed;
+  // the permits for the lookups against each root, by root group
+  private final Map<int[], Semaphore> _rootPermits = new HashMap<int[], Semaphore>();
+
+  /**
+   * @param budgetMillis      the time allowed for all lookups.
+   * @param rootTimeoutMillis the time allowed for the lookups against any one VCS root.
+   */
+  CommitLogRevisionResolver(Project project, CommitLogBuilder builder, ProgressIndicator indicator, long budgetMillis,
+                            long rootTimeoutMillis)
+  {
+    _project = project;
+    _builder = builder;
+    _indicator = indicator;
+    _deadline = System.currentTimeMillis() + budgetMillis;
+    _rootTimeout = rootTimeoutMillis;
+    _versions = new String[builder.getCommitLogEntryCount()];
+    _resolved = new boolean[_versions.length];
+  }
+
+  /**
+   * Looks up the new revision of each file, and records whether the file was committed - a file whose revision did not
+   * change was not.
+   *
+   * @return whether all the revisions were resolved.  Those that were not are marked unresolved.
+   */
+  boolean updateEntryVersions()
+  {
+    final Collection<int[]> entriesByRoot = groupEntriesByRoot();
+    for (final int[] rootEntries : entriesByRoot) {
+      _rootPermits.put(rootEntries, new Semaphore(MAX_LOOKUPS_PER_ROOT));
+    }
+    final long rootDeadline = getRootDeadline();
+    final Map<int[], Future<Boolean>> rootLookups = new LinkedHashMap<int[], Future<Boolean>>();
+    for (final int[] rootEntries : entriesByRoot) {
+      if (getStrategy(rootEntries) == RevisionStrategy.PER_ROOT) {
+        rootLookups.put(rootEntries, ApplicationManager.getApplication().executeOnPooledThread(new Callable<Boolean>()
+        {
+          public Boolean call()
+          {
+            final Semaphore rootPermits = _rootPermits.get(rootEntries);
+            if (!acquire(rootPermits, rootDeadline)) {
+              return false;
+            }
+            try {
+              return resolveRoot(rootEntries);
+            } finally {
+              release(rootPermits);
+            }
+          }
+        }));
+      }
+    }
+    final List<int[]> perFileRoots = new ArrayList<int[]>();
+    for (final int[] rootEntries : entriesByRoot) {
+      final Future<Boolean> rootLookup = rootLookups.get(rootEntries);
+      if (rootLookup == null) {
+        perFileRoots.add(rootEntries);
+      } else if (waitFor(rootLookup, rootDeadline) && !Boolean.TRUE.equals(getResult(rootLookup))) {
+        // the root could not be resolved as a whole, so resolve its files one by one
+        perFileRoots.add(rootEntries);
+      }
+    }
+    resolveFiles(perFileRoots);
+    return apply();
+  }
+
+  /**
+   * Looks up the revisions of the given entries file by file.
+   */
+  private void resolveFiles(Collection<int[]> entriesByRoot)
+  {
+    final long rootDeadline = getRootDeadline();
+    final List<Future<?>> lookups = new ArrayList<Future<?>>();
+    for (final int[] rootEntries : entriesByRoot) {
+      final Semaphore rootPermits = _rootPermits.get(rootEntries);
+      final AtomicInteger next = new AtomicInteger();
+      final Runnable lookup = new Runnable()
+      {
+        public void run()
+        {
+          int i;
+          while ((i = next.getAndIncrement()) < rootEntries.length && acquire(rootPermits, rootDeadline)) {
+            try {
+              resolve(rootEntries[i]);
+            } finally {
+              release(rootPermits);
+            }
+          }
+        }
+      };
+      // no more workers than the root allows lookups, so that none wait on the root's permits
+      for (int i = 0; i < Math.min(MAX_LOOKUPS_PER_ROOT, rootEntries.length); i++) {
+        lookups.add(ApplicationManager.getApplication().executeOnPooledThread(lookup));
+      }
+    }
+    for (final Future<?> future : lookups) {
+      waitFor(future, rootDeadline);
+    }
+  }
+
+  /**
+   * Waits for a lookup to be allowed against the given root, and overall, until the deadline, the lookups are closed or
+   * the thread is interrupted.
+   *
+   * @return whether the lookup may run, in which case it must {@link #release} the permits once done.
+   */
+  private boolean acquire(Semaphore rootPermits, long deadline)
+  {
+    try {
+      while (!isClosed() && System.currentTimeMillis() < deadline) {
+        if (rootPermits.tryAcquire(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+          if (LOOKUP_PERMITS.tryAcquire(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+          rootPermits.release();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private static void release(Semaphore rootPermits)
+  {
+    LOOKUP_PERMITS.release();
+    rootPermits.release();
+  }
+
+  private long getRootDeadline()
+  {
+    return Math.min(_deadline, System.currentTimeMillis() + _rootTimeout);
+  }
+
+  /**
+   * Waits for the given lookup until the given deadline, reporting progress meanwhile.  A lookup still running at the
+   * deadline, or when the indicator is cancelled, is cancelled.
+   *
+   * @return whether the lookup finished.
+   */
+  private boolean waitFor(Future<?> future, long deadline)
+  {
+    while (!future.isDone()) {
+      final long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0 || _indicator.isCanceled() || Thread.currentThread().isInterrupted()) {
+        future.cancel(true);
+        return false;
+      }
+      try {
+        future.get(Math.min(remaining, POLL_INTERVAL_MILLIS), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        // still running
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        e.getCause().printStackTrace();
+      } catch (CancellationException e) {
+        return false;
+      }
+      reportProgress();
+    }
+    return true;
+  }
+
+  @Nullable
+  private static <T> T getResult(Future<T> future)
+  {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // already reported while waiting
+    } catch (CancellationException e) {
+      // abandoned
+    }
+    return null;
+  }
+
+  private synchronized void reportProgress()
+  {
+    _indicator.setFraction(_versions.length == 0 ? 1 : (double)_resolvedCount / _versions.length);
+  }
+
+  private synchronized boolean isClosed()
+  {
+    return _closed;
+  }
+
+  /**
+   * Records the revision found for the entry at the given index, unless the lookups have already been closed.
+   */
+  private synchronized void record(int index, @Nullable String version)
+  {
+    if (!_closed && !_resolved[index]) {
+      _versions[index] = version;
+      _resolved[index] = true;
+      _resolvedCount++;
+    }
+  }
+
+  private RevisionStrategy getStrategy(int[] rootEntries)
+  {
+    return RevisionStrategy.forVcs(_builder.getCommitLogEntry(rootEntries[0]).getVcs());
+  }
+
+  /**
+   * Looks up the revision of a root that was committed atomically, from the first of its files that still exists, or
+   * from its first file if all its files were deleted.  If the file's revision changed, the root was committed and all
+   * its files get the new revision.  Otherwise none of its files were committed.
+   *
+   * @return whether the revisions of the root's files were resolved.
+   */
+  private boolean resolveRoot(int[] rootEntries)
+  {
+    CommitLogEntry entry = _builder.getCommitLogEntry(rootEntries[0]);
+    for (final int index : rootEntries) {
+      if (_builder.getCommitLogEntry(index).getChangeType() != Change.Type.DELETED) {
+        entry = _builder.getCommitLogEntry(index);
+        break;
+      }
+    }
+    final String version;
+    try {
+      version = getCurrentFileVersion(entry.getVcs(), entry.getFilePath());
+    } catch (VcsException e) {
+      e.printStackTrace();
+      return false;
+    }
+    if (version == null) {
+      return false;
+    }
+    final boolean committed = !version.equals(entry.getOldVersion());
+    for (final int index : rootEntries) {
+      record(index, committed ? version : _builder.getCommitLogEntry(index).getOldVersion());
+    }
+    return true;
+  }
+
+  /**
+   * @return the indexes of the entries, grouped by VCS root.  Roots are told apart by path, as their presentable names
+   *         need not be unique.  An entry whose root cannot be found is put in a group of its own.
+   */
+  private Collection<int[]> groupEntriesByRoot()
+  {
+    final Map<String, List<Integer>> entriesByRoot = new LinkedHashMap<String, List<Integer>>();
+    final Map<String, VirtualFile> rootsByDirectory = new HashMap<String, VirtualFile>();
+    for (int i = 0; i < _versions.length; i++) {
+      final CommitLogEntry entry = _builder.getCommitLogEntry(i);
+      final VirtualFile vcsRoot = getVcsRoot(entry, rootsByDirectory);
+      final String root = vcsRoot != null ? entry.getVcs().getName() + ':' + vcsRoot.getPath() : entry.getPath();
+      List<Integer> rootEntries = entriesByRoot.get(root);
+      if (rootEntries == null) {
+        rootEntries = new ArrayList<Integer>();
+        entriesByRoot.put(root, rootEntries);
+      }
+      rootEntries.add(i);
+    }
+    final List<int[]> result = new ArrayList<int[]>(entriesByRoot.size());
+    for (final List<Integer> rootEntries : entriesByRoot.values()) {
+      final int[] indexes = new int[rootEntries.size()];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = rootEntries.get(i);
+      }
+      result.add(indexes);
+    }
+    return result;
+  }
+
+  /**
+   * @return the VCS root of the given entry, as collected, or else looked up once for each directory.
+   */
+  @Nullable
+  private VirtualFile getVcsRoot(final CommitLogEntry entry, Map<String, VirtualFile> rootsByDirectory)
+  {
+    if (entry.getVcsRoot() != null) {
+      return entry.getVcsRoot();
+    }
+    final String path = entry.getPath();
+    final String directory = path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+    if (rootsByDirectory.containsKey(directory)) {
+      return rootsByDirectory.get(directory);
+    }
+    final VirtualFile result = ApplicationManager.getApplication().runReadAction(new Computable<VirtualFile>()
+    {
+      public VirtualFile compute()
+      {
+        return VcsUtil.getVcsRootFor(_project, entry.getFilePath());
+      }
+    });
+    rootsByDirectory.put(directory, result);
+    return result;
+  }
+
+  private void resolve(int index)
+  {
+    final CommitLogEntry entry = _builder.getCommitLogEntry(index);
+    try {
+      record(index, getCurrentFileVersion(entry.getVcs(), entry.getFilePath()));
+    } catch (VcsException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Closes the lookups and applies the revisions found to the entries.  Entries whose lookup failed or was abandoned
+   * are marked unresolved, and are kept in the log.
+   *
+   * @return whether all the revisions were resolved.
+   */
+  private synchronized boolean apply()
+  {
+    _closed = true;
+    boolean allResolved = true;
+    for (int i = 0; i < _versions.length; i++) {
+      if (!_resolved[i]) {
+        _builder.setNewVersionUnresolved(i);
+        allResolved = false;
+        continue;
+      }
+      final CommitLogEntry commitLogEntry = _builder.getCommitLogEntry(i);
+      _builder.setNewVersion(i, _versions[i] != null ? _versions[i] : commitLogEntry.getOldVersion());
+      final boolean committed = commitLogEntry.isRevisionChanged();
+      if (!committed) {
+        CommitLogProjectComponent.log(
+          "Removing Commit log entry for " + commitLogEntry.getPath() + " : file not committed");
+      }
+      _builder.setCommitted(i, committed);
+    }
+    return allResolved;
+  }
+
+  /**
+   * How the new revisions of the files under a VCS root are looked up.
+   */
+  enum RevisionStrategy
+  {
+    /**
+     * Each file has its own revisions, as with CVS, so each file's revision is looked up.
+     */
+    PER_FILE,
+    /**
+     * A commit gives all its files the same revision, so the revision is looked up once for each root.
+     */
+    PER_ROOT;
+
+    /**
+     * The names, as given by {@link AbstractVcs#getName}, of the VCSs whose commits give all their files one revision:
+     * <ul>
+     * <li>"svn" - Subversion</li>
+     * <li>"Git" - Git</li>
+     * <li>"hg4idea" and "Mercurial" - the two Mercurial plugins</li>
+     * </ul>
+     * The IDE offers no way of asking a VCS whether it commits atomically, and the plugins of these VCSs need not be
+     * installed, so they are known by name only.  This is the one place a VCS is added, or a renamed plugin is updated.
+     * Perforce and CVS are left out on purpose, as their revisions are per file.
+     */
+    static final Set<String> ATOMIC_VCS_NAMES =
+      Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("svn", "Git", "hg4idea", "Mercurial")));
+
+    /**
+     * @return {@link #PER_ROOT} for the VCSs named in {@link #ATOMIC_VCS_NAMES}, and {@link #PER_FILE} for any other
+     *         VCS.  Looking up revisions file by file is right for every VCS, if slower, so a VCS not listed, or whose
+     *         plugin has been renamed, still gets correct revisions.
+     */
+    static RevisionStrategy forVcs(AbstractVcs vcs)
+    {
+      return ATOMIC_VCS_NAMES.contains(vcs.getName()) ? PER_ROOT : PER_FILE;
+    }
+  }
+
+  @Nullable
+  private static String getCurrentFileVersion(@NotNull AbstractVcs vcs, FilePath filePath)
+    throws VcsException
+  {
+    String version = null;
+    final DiffProvider diffProvider = vcs.getDiffProvider();
+    final VirtualFile file = filePath.getVirtualFile();
+    if (diffProvider != null && file != null) {
+      final VcsRevisionNumber revision = diffProvider.getCurrentRevision(file);
+      if (revision != null) {
+        version = revision.asString();
+      }
+    } else if (diffProvider != null) {
+      // deleted - ask for the latest revision of the path alone rather than for its whole history.
+      final ItemLatestState latestState = diffProvider.getLastRevision(filePath);
+      if (latestState != null && latestState.getNumber() != null) {
+        version = latestState.getNumber().asString();
+      }
+    }
+    if (version == null && (diffProvider == null || file == null)) {
+      // diff provider not supported or did not know the deleted file - use alternate method but lookup will be slower.
+      final VcsHistoryProvider historyProvider = vcs.getVcsHistoryProvider();
+      if (historyProvider != null) {
+        final VcsHistorySession session = historyProvider.createSessionFor(filePath);
+        if (session != null) {
+          if (!session.getRevisionList().isEmpty()) {
+            VcsRevisionNumber currentRevisionNumber = session.getCurrentRevisionNumber();
+            if (currentRevisionNumber != null)
+              version = currentRevisionNumber.asString();
+          }
+        }
+      }
+    }
+    return version;
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * An inverted index of the logs in a {@link CommitLogArchive}, from each term to the sequence numbers of the logs
+ * holding it.  The terms of a log are the words of its commit message and changelist name, its root names, and the
+ * names, paths from root and package names of its files.
+ * <p/>
+ * The terms of each log are appended to a file as the log is archived, and the index is rebuilt in memory from that
+ * file when first needed.  Logs archived without their terms being recorded, such as by a crash between the two, are
+ * indexed from their archived text when the index is loaded.
+ */
+class CommitLogSearchIndex
+{
+  private static final String TERMS_FILE_NAME = "commitlogs.terms";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File _file;
+  private final CommitLogArchive _archive;
+  private final SortedMap<String, Postings> _postings = new TreeMap<String, Postings>();
+  private int _indexedCount;
+  private boolean _loaded;
+
+  CommitLogSearchIndex(File directory, CommitLogArchive archive)
+  {
+    _file = new File(directory, TERMS_FILE_NAME);
+    _archive = archive;
+  }
+
+  /**
+   * @return the search terms of a commit log being generated.  Only attributes already resolved are indexed: the paths
+   *         from root and package names of the files are taken from the entries if the template collected them, or
+   *         else from the given cache of directories resolved earlier, if it holds them, but never looked up.
+   */
+  static Set<String> getTerms(CommitLogBuilder builder, @Nullable ChangedDirectoryCache resolvedDirectories)
+  {
+    final Set<String> result = new HashSet<String>();
+    tokenize(builder.getCommitMessage(), result);
+    tokenize(builder.getChangeListName(), result);
+    for (final String rootName : builder.getRootNames()) {
+      tokenize(rootName, result);
+    }
+    final Set<CommitLogEntry.Attribute> collected = builder.getTemplate().getRequiredAttributes();
+    final boolean pathsCollected = collected.contains(CommitLogEntry.Attribute.PATH_FROM_ROOT);
+    final boolean packagesCollected = collected.contains(CommitLogEntry.Attribute.PACKAGE_NAME);
+    final boolean pathsCached = resolvedDirectories != null &&
+                                resolvedDirectories.resolves(EnumSet.of(CommitLogEntry.Attribute.PATH_FROM_ROOT));
+    final boolean packagesCached = resolvedDirectories != null &&
+                                   resolvedDirectories.resolves(EnumSet.of(CommitLogEntry.Attribute.PACKAGE_NAME));
+    final CommitLogEntryStore.Range entries = builder.getCommittedEntries();
+    for (int i = 0; i < entries.size(); i++) {
+      final CommitLogEntry entry = entries.get(i);
+      tokenize(entry.getName(), result);
+      final ChangedDirectoryCache.ChangedDirectory directory = entry.getDirectory();
+      final ChangedDirectoryCache.ChangedDirectory cachedDirectory =
+        (!pathsCollected && pathsCached || !packagesCollected && packagesCached) && directory.getPath().length() > 0 ?
+        resolvedDirectories.getResolvedDirectory(directory.getPath()) : null;
+      if (pathsCollected) {
+        tokenize(directory.getPathFromRoot(), result);
+      } else if (pathsCached && cachedDirectory != null) {
+        tokenize(cachedDirectory.getPathFromRoot(), result);
+      }
+      // package names are null for files outside any package
+      if (packagesCollected) {
+        tokenize(directory.getPackageName(), result);
+      } else if (packagesCached && cachedDirectory != null) {
+        tokenize(cachedDirectory.getPackageName(), result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the search terms of an archived log, for logs whose terms were not recorded when they were archived.
+   */
+  private static Set<String> getTerms(CommitLogArchive.ArchivedCommitLog log) throws IOException
+  {
+    final Set<String> result = new HashSet<String>();
+    tokenize(log.getChangeListName(), result);
+    for (final String rootName : log.getRootNames()) {
+      tokenize(rootName, result);
+    }
+    tokenize(log.getText(), result);
+    return result;
+  }
+
+  /**
+   * Splits the given text into lower case terms.  Terms are runs of letters, digits, '_', '-' and '.', so that file
+   * names and issue ids such as BUG-1234 are single terms, without leading or trailing '-' or '.'.
+   */
+  static void tokenize(@Nullable String text, Collection<String> terms)
+  {
+    if (text == null) {
+      return;
+    }
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      if (i < text.length() && isTermChar(text.charAt(i))) {
+        if (start < 0) {
+          start = i;
+        }
+      } else if (start >= 0) {
+        int end = i;
+        while (start < end && !Character.isLetterOrDigit(text.charAt(start)) && text.charAt(start) != '_') {
+          start++;
+        }
+        while (end > start && !Character.isLetterOrDigit(text.charAt(end - 1)) && text.charAt(end - 1) != '_') {
+          end--;
+        }
+        if (start < end) {
+          terms.add(text.substring(start, end).toLowerCase());
+        }
+        start = -1;
+      }
+    }
+  }
+
+  private static boolean isTermChar(char c)
+  {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+  }
+
+  /**
+   * Records the terms of the archived log with the given sequence number.
+   */
+  synchronized void add(int sequence, Collection<String> terms) throws IOException
+  {
+    loadTerms();
+    if (sequence < _indexedCount) {
+      return;
+    }
+    // index any logs archived before this one that are missing from the index
+    catchUp(sequence);
+    append(sequence, terms);
+  }
+
+  /**
+   * Finds the logs holding all the terms of the given query, each term of the query matching any term it is a prefix
+   * of, so that "FooService" finds FooService.java.
+   *
+   * @return the sequence numbers of the logs found, most recent first.
+   */
+  synchronized int[] search(String query) throws IOException
+  {
+    load();
+    final Set<String> queryTerms = new LinkedHashSet<String>();
+    tokenize(query, queryTerms);
+    if (queryTerms.isEmpty()) {
+      return new int[0];
+    }
+    BitSet result = null;
+    for (final String queryTerm : queryTerms) {
+      final BitSet matches = new BitSet(_indexedCount);
+      for (final Postings postings : _postings.subMap(queryTerm, queryTerm + Character.MAX_VALUE).values()) {
+        postings.addTo(matches);
+      }
+      if (result == null) {
+        result = matches;
+      } else {
+        result.and(matches);
+      }
+      if (result.isEmpty()) {
+        break;
+      }
+    }
+    final int[] sequences = new int[result.cardinality()];
+    int i = sequences.length;
+    for (int sequence = result.nextSetBit(0); sequence >= 0; sequence = result.nextSetBit(sequence + 1)) {
+      sequences[--i] = sequence;
+    }
+    return sequences;
+  }
+
+  /**
+   * Forces the index to be loaded, which may take a while for a large archive.
+   */
+  synchronized void load() throws IOException
+  {
+    loadTerms();
+    catchUp(_archive.size());
+  }
+
+  private void loadTerms() throws IOException
+  {
+    if (_loaded) {
+      return;
+    }
+    _postings.clear();
+    _indexedCount = 0;
+    long validLength = 0;
+    if (_file.exists()) {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+      try {
+        final List<String> terms = new ArrayList<String>();
+        while (true) {
+          terms.clear();
+          final int sequence;
+          try {
+            sequence = in.readInt();
+            final int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+              terms.add(readString(in));
+            }
+          } catch (EOFException e) {
+            break;
+          }
+          validLength += 8;
+          for (final String term : terms) {
+            validLength += 4 + term.getBytes(UTF8).length;
+          }
+          if (sequence == _indexedCount) {
+            addToMemory(sequence, terms);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      if (_file.length() > validLength) {
+        // drop a record cut short by a crash
+        final RandomAccessFile file = new RandomAccessFile(_file, "rw");
+        try {
+          file.setLength(validLength);
+        } finally {
+          file.close();
+        }
+      }
+    }
+    _loaded = true;
+  }
+
+  private void catchUp(int sequence) throws IOException
+  {
+    while (_indexedCount < Math.min(sequence, _archive.size())) {
+      append(_indexedCount, getTerms(_archive.read(_indexedCount)));
+    }
+  }
+
+  private void append(int sequence, Collection<String> terms) throws IOException
+  {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(terms.size() * 16 + 8);
+    final DataOutputStream out = new DataOutputStream(buffer);
+    out.writeInt(sequence);
+    out.writeInt(terms.size());
+    for (final String term : terms) {
+      final byte[] bytes = term.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    out.close();
+    final FileOutputStream file = new FileOutputStream(_file, true);
+    try {
+      buffer.writeTo(file);
+    } finally {
+      file.close();
+    }
+    addToMemory(sequence, terms);
+  }
+
+  private void addToMemory(int sequence, Collection<String> terms)
+  {
+    for (final String term : terms) {
+      Postings postings = _postings.get(term);
+      if (postings == null) {
+        postings = new Postings();
+        _postings.put(term, postings);
+      }
+      postings.add(sequence);
+    }
+    _indexedCount = sequence + 1;
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * The sequence numbers of the logs holding a term, in increasing order.
+   */
+  private static class Postings
+  {
+    private int[] _sequences = new int[2];
+    private int _size;
+
+    void add(int sequence)
+    {
+      if (_size > 0 && _sequences[_size - 1] == sequence) {
+        return;
+      }
+      if (_size == _sequences.length) {
+        final int[] sequences = new int[_size * 2];
+        System.arraycopy(_sequences, 0, sequences, 0, _size);
+        _sequences = sequences;
+      }
+      _sequences[_size++] = sequence;
+    }
+
+    void addTo(BitSet sequences)
+    {
+      for (int i = 0; i < _size; i++) {
+        sequences.set(_sequences[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.application.ApplicationManager;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+
+/**
+ * Searches the archived commit logs of the project, listing the logs holding all the words typed, most recent first.
+ * Opening a log from the list shows it in a tab of its own.
+ * <p/>
+ * A search reads the index and the archive, so it is run on a pooled thread once typing pauses, and its results are
+ * shown only if no later search has been started meanwhile.
+ */
+class CommitLogSearchPanel extends JPanel
+{
+  private static final int MAX_RESULTS = 500;
+  private static final int SEARCH_DELAY_MILLIS = 300;
+
+  private final CommitLogProjectComponent _projectComponent;
+  private final JTextField _queryField = new JTextField();
+  private final DefaultListModel _resultsModel = new DefaultListModel();
+  private final JList _results = new JList(_resultsModel);
+  private final JLabel _status = new JLabel(" ");
+  private final Timer _searchTimer;
+  // the number of searches started, so that all but the latest are abandoned
+  private volatile int _searchCount;
+
+  CommitLogSearchPanel(CommitLogProjectComponent projectComponent)
+  {
+    super(new BorderLayout());
+    _projectComponent = projectComponent;
+    JPanel queryPanel = new JPanel(new BorderLayout());
+    queryPanel.add(new JLabel("Find logs mentioning: "), BorderLayout.WEST);
+    queryPanel.add(_queryField, BorderLayout.CENTER);
+    add(queryPanel, BorderLayout.NORTH);
+    add(new JScrollPane(_results), BorderLayout.CENTER);
+    add(_status, BorderLayout.SOUTH);
+    _results.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    _queryField.setEnabled(false);
+    _searchTimer = new Timer(SEARCH_DELAY_MILLIS, new ActionListener()
+    {
+      public void actionPerformed(ActionEvent e)
+      {
+        search();
+      }
+    });
+    _searchTimer.setRepeats(false);
+    _queryField.getDocument().addDocumentListener(new DocumentListener()
+    {
+      public void insertUpdate(DocumentEvent e)
+      {
+        _searchTimer.restart();
+      }
+
+      public void removeUpdate(DocumentEvent e)
+      {
+        _searchTimer.restart();
+      }
+
+      public void changedUpdate(DocumentEvent e)
+      {
+        _searchTimer.restart();
+      }
+    });
+    _results.addMouseListener(new MouseAdapter()
+    {
+      @Override
+      public void mouseClicked(MouseEvent e)
+      {
+        if (e.getClickCount() == 2) {
+          openSelectedLog();
+        }
+      }
+    });
+    _results.addKeyListener(new KeyAdapter()
+    {
+      @Override
+      public void keyPressed(KeyEvent e)
+      {
+        if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+          openSelectedLog();
+        }
+      }
+    });
+    loadIndex();
+  }
+
+  /**
+   * Loads the search index on a pooled thread, as it may take a while for a large archive.
+   */
+  private void loadIndex()
+  {
+    _status.setText("Loading commit log index...");
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable()
+    {
+      public void run()
+      {
+        String status;
+        try {
+          _projectComponent.getCommitLogSearchIndex().load();
+          status = _projectComponent.getCommitLogArchive().size() + " commit logs archived";
+        } catch (IOException e) {
+          e.printStackTrace();
+          status = "Could not load the commit log index : " + e.getMessage();
+        }
+        final String finalStatus = status;
+        SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            _status.setText(finalStatus);
+            _queryField.setEnabled(true);
+            _queryField.requestFocusInWindow();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Starts a search for the query typed, on a pooled thread.
+   */
+  private void search()
+  {
+    final int searchNumber = ++_searchCount;
+    final String query = _queryField.getText();
+    if (query.trim().length() == 0) {
+      _resultsModel.clear();
+      _status.setText(" ");
+      return;
+    }
+    _status.setText("Searching...");
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable()
+    {
+      public void run()
+      {
+        final java.util.List<SearchResult> results = new ArrayList<SearchResult>();
+        String status;
+        try {
+          int[] sequences = _projectComponent.getCommitLogSearchIndex().search(query);
+          CommitLogArchive archive = _projectComponent.getCommitLogArchive();
+          for (int i = 0; i < Math.min(sequences.length, MAX_RESULTS); i++) {
+            if (searchNumber != _searchCount) {
+              return;
+            }
+            results.add(new SearchResult(archive.read(sequences[i])));
+          }
+          status = sequences.length > MAX_RESULTS ?
+                   sequences.length + " logs found, the most recent " + MAX_RESULTS + " shown" :
+                   sequences.length + " logs found";
+        } catch (IOException e) {
+          e.printStackTrace();
+          status = "Could not search the commit logs : " + e.getMessage();
+        }
+        final String finalStatus = status;
+        SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            if (searchNumber != _searchCount) {
+              // superseded by a later search
+              return;
+            }
+            _resultsModel.clear();
+            for (final SearchResult result : results) {
+              _resultsModel.addElement(result);
+            }
+            _status.setText(finalStatus);
+          }
+        });
+      }
+    });
+  }
+
+  private void openSelectedLog()
+  {
+    SearchResult result = (SearchResult)_results.getSelectedValue();
+    if (result != null) {
+      try {
+        _projectComponent.getCommitLogWindow().addCommitLog(result.getTitle(), result._log.getText());
+      } catch (IOException e) {
+        e.printStackTrace();
+        _status.setText("Could not read the commit log : " + e.getMessage());
+      }
+    }
+  }
+
+  private static class SearchResult
+  {
+    private final CommitLogArchive.ArchivedCommitLog _log;
+
+    private SearchResult(CommitLogArchive.ArchivedCommitLog log)
+    {
+      _log = log;
+    }
+
+    String getTitle()
+    {
+      String title = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(_log.getDate()) +
+                     " : " + _log.getChangeListName();
+      if (_log.isFailed()) {
+        title += " [FAILED]";
+      }
+      return title;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder result = new StringBuilder(getTitle()).append(" - ").append(_log.getFileCount()).append(" files");
+      if (!_log.getRootNames().isEmpty()) {
+        result.append(" in ");
+        for (int i = 0; i < _log.getRootNames().size(); i++) {
+          if (i > 0) {
+            result.append(", ");
+          }
+          result.append(_log.getRootNames().get(i));
+        }
+      }
+      return result.toString();
+    }
+  }
+}
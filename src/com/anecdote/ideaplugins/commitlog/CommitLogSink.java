@@ -0,0 +1,306 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.execution.configurations.ParametersList;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A destination for the commit logs queued in a {@link CommitLogOutbox}, to which the logs are delivered in batches
+ * once the commit has completed.  A delivery that fails is retried, so a sink may be given the same log more than
+ * once, and must treat a delivery as failed only by throwing.
+ */
+abstract class CommitLogSink
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String _key;
+
+  protected CommitLogSink(String type, String target)
+  {
+    // the key names the queue of the sink on disk, so must stay the same for the same settings across sessions
+    _key = type + '-' + Integer.toHexString(target.hashCode());
+  }
+
+  /**
+   * @return a key identifying the sink among those of the project, that is safe to use as a file name.
+   */
+  String getKey()
+  {
+    return _key;
+  }
+
+  /**
+   * Delivers the given logs, oldest first.
+   *
+   * @throws IOException if the logs could not be delivered, in which case they will be delivered again later.  A
+   *                     {@link PermanentFailure} if delivering the same logs again would fail the same way.
+   */
+  abstract void deliver(List<CommitLogOutbox.Entry> entries) throws IOException;
+
+  /**
+   * Thrown by a sink that rejected the logs it was given, rather than failing to take them, so that retrying the same
+   * logs is pointless.
+   */
+  static class PermanentFailure extends IOException
+  {
+    PermanentFailure(String message)
+    {
+      super(message);
+    }
+  }
+
+  /**
+   * Runs a command once per batch, with the files holding the logs of the batch as its arguments, after any arguments
+   * of the command itself.  The command fails the delivery by exiting with a non-zero status.
+   */
+  static class Command extends CommitLogSink
+  {
+    private static final long TIMEOUT = 5 * 60 * 1000;
+    private static final int MAX_OUTPUT_REPORTED = 1000;
+
+    private final String[] _command;
+    @Nullable
+    private final File _workingDirectory;
+
+    Command(String commandLine, @Nullable File workingDirectory)
+    {
+      super("command", commandLine);
+      _command = ParametersList.parse(commandLine);
+      _workingDirectory = workingDirectory;
+    }
+
+    @Override
+    void deliver(List<CommitLogOutbox.Entry> entries) throws IOException
+    {
+      final List<String> command = new ArrayList<String>(Arrays.asList(_command));
+      for (final CommitLogOutbox.Entry entry : entries) {
+        command.add(entry.getFile().getAbsolutePath());
+      }
+      final Process process = new ProcessBuilder(command).directory(_workingDirectory).redirectErrorStream(true)
+        .start();
+      process.getOutputStream().close();
+      final OutputReader output = new OutputReader(process.getInputStream());
+      output.start();
+      final long deadline = System.currentTimeMillis() + TIMEOUT;
+      try {
+        while (true) {
+          try {
+            final int exitValue = process.exitValue();
+            output.join(1000);
+            if (exitValue != 0) {
+              throw new IOException(_command[0] + " exited with " + exitValue + " : " + output.getOutput());
+            }
+            return;
+          } catch (IllegalThreadStateException e) {
+            // still running
+          }
+          if (System.currentTimeMillis() > deadline) {
+            throw new IOException(_command[0] + " did not finish within " + TIMEOUT / 1000 + " seconds");
+          }
+          Thread.sleep(100);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(_command[0] + " was interrupted");
+      } finally {
+        process.destroy();
+      }
+    }
+
+    /**
+     * Drains the output of the command, so that it cannot block writing to a full pipe, keeping the start of it to
+     * report a failure.
+     */
+    private static class OutputReader extends Thread
+    {
+      private final InputStream _in;
+      private final StringBuffer _output = new StringBuffer();
+
+      private OutputReader(InputStream in)
+      {
+        super("Commit Log Command Output");
+        setDaemon(true);
+        _in = in;
+      }
+
+      @Override
+      public void run()
+      {
+        final Reader reader = new InputStreamReader(_in);
+        try {
+          final char[] buffer = new char[1024];
+          int length;
+          while ((length = reader.read(buffer)) != -1) {
+            _output.append(buffer, 0, Math.min(length, Math.max(MAX_OUTPUT_REPORTED - _output.length(), 0)));
+          }
+        } catch (IOException e) {
+          // the command has gone
+        } finally {
+          try {
+            reader.close();
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      }
+
+      String getOutput()
+      {
+        return _output.toString().trim();
+      }
+    }
+  }
+
+  /**
+   * Copies each log into a directory, as a file named after its entry, for other tools to pick up.  Each file is
+   * written under a temporary name and then renamed, so that a partly written log is never picked up.
+   */
+  static class DropDirectory extends CommitLogSink
+  {
+    private final File _directory;
+
+    DropDirectory(File directory)
+    {
+      super("directory", directory.getPath());
+      _directory = directory;
+    }
+
+    @Override
+    void deliver(List<CommitLogOutbox.Entry> entries) throws IOException
+    {
+      if (!_directory.isDirectory() && !_directory.mkdirs()) {
+        throw new IOException("Could not create commit log drop directory " + _directory);
+      }
+      for (final CommitLogOutbox.Entry entry : entries) {
+        final File file = new File(_directory, entry.getFile().getName());
+        final File tempFile = new File(_directory, entry.getFile().getName() + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), UTF8);
+        try {
+          writer.write(entry.getText());
+        } finally {
+          writer.close();
+        }
+        // a log delivered again replaces the copy already there
+        if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+          throw new IOException("Could not write commit log " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Posts each batch of logs to a URL as a JSON array, holding for each log its entry name, the time it was generated
+   * in milliseconds since 1970, whether its commit failed, and its text.  Any response other than a 2xx fails the
+   * delivery, and a 4xx other than a timeout or rate limit fails it permanently, as the server rejected the logs.
+   */
+  static class Http extends CommitLogSink
+  {
+    private static final int TIMEOUT = 30 * 1000;
+    private static final int REQUEST_TIMEOUT = 408;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final URL _url;
+
+    Http(URL url)
+    {
+      super("http", url.toString());
+      _url = url;
+    }
+
+    @Override
+    void deliver(List<CommitLogOutbox.Entry> entries) throws IOException
+    {
+      final StringBuilder json = new StringBuilder("[");
+      for (final CommitLogOutbox.Entry entry : entries) {
+        if (json.length() > 1) {
+          json.append(',');
+        }
+        json.append("{\"name\":");
+        appendJsonString(json, entry.getName());
+        json.append(",\"time\":").append(entry.getDate().getTime());
+        json.append(",\"failed\":").append(entry.isFailed());
+        json.append(",\"text\":");
+        appendJsonString(json, entry.getText());
+        json.append('}');
+      }
+      json.append(']');
+      final byte[] body = json.toString().getBytes(UTF8);
+      final HttpURLConnection connection = (HttpURLConnection)_url.openConnection();
+      try {
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        final OutputStream out = connection.getOutputStream();
+        try {
+          out.write(body);
+        } finally {
+          out.close();
+        }
+        final int responseCode = connection.getResponseCode();
+        if (responseCode / 100 == 4 && responseCode != REQUEST_TIMEOUT && responseCode != TOO_MANY_REQUESTS) {
+          throw new PermanentFailure(_url + " responded " + responseCode + " " + connection.getResponseMessage());
+        }
+        if (responseCode / 100 != 2) {
+          throw new IOException(_url + " responded " + responseCode + " " + connection.getResponseMessage());
+        }
+      } finally {
+        connection.disconnect();
+      }
+    }
+
+    private static void appendJsonString(StringBuilder json, String string)
+    {
+      json.append('"');
+      for (int i = 0; i < string.length(); i++) {
+        final char c = string.charAt(i);
+        switch (c) {
+          case '"':
+            json.append("\\\"");
+            break;
+          case '\\':
+            json.append("\\\\");
+            break;
+          case '\n':
+            json.append("\\n");
+            break;
+          case '\r':
+            json.append("\\r");
+            break;
+          case '\t':
+            json.append("\\t");
+            break;
+          default:
+            if (c < 0x20) {
+              json.append(String.format("\\u%04x", (int)c));
+            } else {
+              json.append(c);
+            }
+        }
+      }
+      json.append('"');
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.editor.*;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.io.IOException;
+
+/**
+ * A commit log shown in a tab of the commit log window.  The tab holds only the text of the log, compressed by a
+ * {@link CommitLogCompressor}, which for the repetitive text of commit logs takes a small fraction of the memory of a
+ * String.  An editor showing the text is created only once the tab is on screen, that is once it is selected and the
+ * commit log window is visible, and released once the tab has been off screen for a while, leaving only the
+ * compressed text.
+ */
+class CommitLogTab
+{
+  private final Project _project;
+  private final String _title;
+  private final CommitLogCompressor _compressor;
+  private final byte[] _text;
+  private final JPanel _component = new JPanel(new BorderLayout());
+  @Nullable
+  private Editor _editor;
+  private long _hiddenSince;
+
+  /**
+   * @param text the text of the log, as compressed by the given compressor.
+   */
+  CommitLogTab(Project project, String title, byte[] text, CommitLogCompressor compressor)
+  {
+    _project = project;
+    _title = title;
+    _compressor = compressor;
+    _text = text;
+    _component.addHierarchyListener(new HierarchyListener()
+    {
+      public void hierarchyChanged(HierarchyEvent e)
+      {
+        if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+          if (_component.isShowing()) {
+            show();
+          } else {
+            hide(System.currentTimeMillis());
+          }
+        }
+      }
+    });
+  }
+
+  String getTitle()
+  {
+    return _title;
+  }
+
+  String getText()
+  {
+    if (_editor != null) {
+      return _editor.getDocument().getText();
+    }
+    try {
+      return _compressor.decompress(_text);
+    } catch (IOException e) {
+      // the text was compressed by the same compressor
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the component of the tab, which holds the editor while there is one.
+   */
+  JComponent getComponent()
+  {
+    return _component;
+  }
+
+  /**
+   * Creates the editor of the tab, if it has none.
+   */
+  private void show()
+  {
+    _hiddenSince = 0;
+    if (_editor != null) {
+      return;
+    }
+    EditorFactory editorFactory = EditorFactory.getInstance();
+    Editor editor = editorFactory.createViewer(editorFactory.createDocument(getText()), _project);
+    EditorSettings editorsettings = editor.getSettings();
+    editorsettings.setFoldingOutlineShown(false);
+    editorsettings.setLineMarkerAreaShown(false);
+    editorsettings.setLineNumbersShown(false);
+    editorsettings.setRightMarginShown(false);
+    _component.add(editor.getComponent(), BorderLayout.CENTER);
+    _component.revalidate();
+    _editor = editor;
+  }
+
+  private void hide(long time)
+  {
+    if (_editor != null && _hiddenSince == 0) {
+      _hiddenSince = time;
+    }
+  }
+
+  /**
+   * Releases the editor of the tab if the tab has been hidden since before the given time.
+   */
+  void releaseIfHiddenSince(long time)
+  {
+    if (_hiddenSince != 0 && _hiddenSince < time) {
+      release();
+    }
+  }
+
+  void release()
+  {
+    _hiddenSince = 0;
+    if (_editor != null) {
+      _component.remove(_editor.getComponent());
+      EditorFactory.getInstance().releaseEditor(_editor);
+      _editor = null;
+    }
+  }
+
+  /**
+   * Copies the selected text to the clipboard, or all the text if none is selected.
+   */
+  void copyToClipboard()
+  {
+    Editor editor = _editor;
+    if (editor == null || !editor.getSelectionModel().hasSelection()) {
+      CopyPasteManager.getInstance().setContents(new StringSelection(getText()));
+    } else {
+      editor.getSelectionModel().copySelectionToClipboard();
+    }
+  }
+}
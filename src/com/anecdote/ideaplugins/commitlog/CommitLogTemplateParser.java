@@ -24,102 +24,151 @@ public class CommitLogTemplateParser
   public static final String BLOCK_PLACEHOLDER_OPEN_SYMBOL = "[";
   public static final String BLOCK_PLACEHOLDER_CLOSE_SYMBOL = "]";
   public static final String ESCAPE_SYMBOL = "\\";
+  public static final String BLOCK_END_PREFIX = "/";
+  private static final char VALUE_PLACEHOLDER_CHAR = VALUE_PLACEHOLDER_SYMBOL.charAt(0);
+  private static final char BLOCK_PLACEHOLDER_OPEN_CHAR = BLOCK_PLACEHOLDER_OPEN_SYMBOL.charAt(0);
+  private static final char BLOCK_PLACEHOLDER_CLOSE_CHAR = BLOCK_PLACEHOLDER_CLOSE_SYMBOL.charAt(0);
+  private static final char ESCAPE_CHAR = ESCAPE_SYMBOL.charAt(0);
 
-  public List<TextTemplateNode> parseTextTemplate(String textTemplate) throws TextTemplateParserException
+  /**
+   * Parses the given template in a single pass into an array of nodes.  Every block placeholder node records the index
+   * of its matching closing (or opening) block placeholder node, so that callers can skip whole blocks without
+   * rescanning.
+   */
+  public TextTemplateNode[] parseTextTemplate(String textTemplate) throws TextTemplateParserException
   {
-    try {
-      StringTokenizer tokens = new StringTokenizer(textTemplate, ESCAPE_SYMBOL + VALUE_PLACEHOLDER_SYMBOL +
-                                                                 BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                                                                 BLOCK_PLACEHOLDER_CLOSE_SYMBOL, true);
-      List<TextTemplateNode> result = new LinkedList<TextTemplateNode>();
-      boolean inPlaceholder = false;
-      boolean inBlockPlaceholder = false;
-      int nextLocation = 0;
-      while (tokens.hasMoreTokens()) {
-        int tokenLocation = nextLocation;
-        String token = tokens.nextToken();
-        nextLocation += token.length();
-        if (VALUE_PLACEHOLDER_SYMBOL.equals(token)) {
-          if (inBlockPlaceholder) {
-            throwParserException("Block placeholders may not contain '" + VALUE_PLACEHOLDER_SYMBOL + '\'',
-                                 tokenLocation);
-          }
-          inPlaceholder = !inPlaceholder;
-        } else if (BLOCK_PLACEHOLDER_OPEN_SYMBOL.equals(token)) {
-          if (inPlaceholder) {
-            throwParserException("Placeholders may not contain '" + BLOCK_PLACEHOLDER_OPEN_SYMBOL + '\'',
-                                 tokenLocation);
-          } else {
-            inPlaceholder = true;
-            inBlockPlaceholder = true;
-          }
-        } else if (BLOCK_PLACEHOLDER_CLOSE_SYMBOL.equals(token)) {
-          if (inPlaceholder) {
-            inPlaceholder = false;
-            inBlockPlaceholder = false;
-          } else {
-            throwParserException("Template may not contain unescaped '" +
-                                 BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' - use '" + ESCAPE_SYMBOL +
-                                 BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' instead", tokenLocation);
-          }
-        } else {
-          if (ESCAPE_SYMBOL.equals(token)) {
-            if (tokens.hasMoreTokens()) {
-              tokenLocation = nextLocation;
-              token = tokens.nextToken();
-              nextLocation += token.length();
-              if (!VALUE_PLACEHOLDER_SYMBOL.equals(token) && !ESCAPE_SYMBOL.equals(token) &&
-                  !BLOCK_PLACEHOLDER_CLOSE_SYMBOL.equals(token) && !BLOCK_PLACEHOLDER_OPEN_SYMBOL.equals(token)) {
-                throwParserException('\'' + ESCAPE_SYMBOL + "' may only precede '" + VALUE_PLACEHOLDER_SYMBOL
-                                     + "', '" + BLOCK_PLACEHOLDER_OPEN_SYMBOL + "', '" +
-                                     BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' or '" + ESCAPE_SYMBOL +
-                                     '\'', tokenLocation);
-              }
-            } else {
-              throwParserException('\'' + ESCAPE_SYMBOL + "' must be followed by '" + VALUE_PLACEHOLDER_SYMBOL
-                                   + "', '" + BLOCK_PLACEHOLDER_OPEN_SYMBOL + "', '" +
-                                   BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' or '" + ESCAPE_SYMBOL +
-                                   '\'', tokenLocation);
-            }
-          }
-          if (inPlaceholder) {
-            if (inBlockPlaceholder) {
-              if (tokens.hasMoreTokens()) {
-                if (token.contains("\n")) {
-                  throwParserException("Block Placeholders may not contain linefeeds",
-                                       tokenLocation + token.indexOf('\n') - 1);
-                }
-                result.add(createTextTemplateNode(TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE, token, tokenLocation));
-              } else {
-                throwParserException("Opening " + BLOCK_PLACEHOLDER_OPEN_SYMBOL +
-                                     " detected with no closing " + BLOCK_PLACEHOLDER_CLOSE_SYMBOL,
-                                     tokenLocation + token.length() - 1);
-              }
-            } else {
-              if (tokens.hasMoreTokens()) {
-                if (token.contains("\n")) {
-                  throwParserException("Value Placeholders may not contain linefeeds",
-                                       tokenLocation + token.indexOf('\n') - 1);
-                }
-                result.add(createTextTemplateNode(TextTemplateNodeType.VALUE_PLACEHOLDER_NODE, token, tokenLocation));
-              } else {
-                throwParserException("Opening " + VALUE_PLACEHOLDER_SYMBOL + " detected with no closing " +
-                                     VALUE_PLACEHOLDER_SYMBOL, tokenLocation + token.length() - 1);
-              }
-            }
-          } else {
-            result.add(createTextTemplateNode(TextTemplateNodeType.TEXT_NODE, token, tokenLocation));
+    final char[] chars = textTemplate.toCharArray();
+    final List<TextTemplateNodeImpl> result = new ArrayList<TextTemplateNodeImpl>();
+    final List<Integer> openBlocks = new ArrayList<Integer>();
+    final StringBuilder text = new StringBuilder(chars.length);
+    int textLocation = 0;
+    int i = 0;
+    while (i < chars.length) {
+      final char c = chars[i];
+      if (c == VALUE_PLACEHOLDER_CHAR || c == BLOCK_PLACEHOLDER_OPEN_CHAR) {
+        final boolean block = c == BLOCK_PLACEHOLDER_OPEN_CHAR;
+        final char closeChar = block ? BLOCK_PLACEHOLDER_CLOSE_CHAR : VALUE_PLACEHOLDER_CHAR;
+        final int nameStart = i + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < chars.length && chars[nameEnd] != closeChar) {
+          checkPlaceholderChar(chars, nameEnd, block);
+          nameEnd++;
+        }
+        if (nameEnd == chars.length) {
+          throwParserException("Opening " + c + " detected with no closing " + closeChar, chars.length - 1);
+        }
+        if (nameEnd > nameStart) {
+          flushTextNode(result, text, textLocation);
+          final String name = new String(chars, nameStart, nameEnd - nameStart);
+          final TextTemplateNodeImpl node = new TextTemplateNodeImpl(
+            block ? TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE : TextTemplateNodeType.VALUE_PLACEHOLDER_NODE, name,
+            nameStart);
+          if (block) {
+            matchBlock(node, result.size(), result, openBlocks);
           }
+          result.add(node);
+        }
+        i = nameEnd + 1;
+        textLocation = i;
+      } else if (c == BLOCK_PLACEHOLDER_CLOSE_CHAR) {
+        throwParserException("Template may not contain unescaped '" +
+                             BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' - use '" + ESCAPE_SYMBOL +
+                             BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' instead", i);
+      } else if (c == ESCAPE_CHAR) {
+        if (i + 1 == chars.length) {
+          throwParserException('\'' + ESCAPE_SYMBOL + "' must be followed by '" + VALUE_PLACEHOLDER_SYMBOL
+                               + "', '" + BLOCK_PLACEHOLDER_OPEN_SYMBOL + "', '" +
+                               BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' or '" + ESCAPE_SYMBOL +
+                               '\'', i);
         }
+        if (!isSymbol(chars[i + 1])) {
+          throwParserException('\'' + ESCAPE_SYMBOL + "' may only precede '" + VALUE_PLACEHOLDER_SYMBOL
+                               + "', '" + BLOCK_PLACEHOLDER_OPEN_SYMBOL + "', '" +
+                               BLOCK_PLACEHOLDER_CLOSE_SYMBOL + "' or '" + ESCAPE_SYMBOL +
+                               '\'', i + 1);
+        }
+        if (text.length() == 0) {
+          textLocation = i + 1;
+        }
+        text.append(chars[i + 1]);
+        i += 2;
+      } else {
+        if (text.length() == 0) {
+          textLocation = i;
+        }
+        text.append(c);
+        i++;
       }
-      return result;
-    } catch (TextTemplateParserException e) {
-      throw new TextTemplateParserException(
-        e.getMessage(), e, e.getLocation());
+    }
+    flushTextNode(result, text, textLocation);
+    if (!openBlocks.isEmpty()) {
+      final TextTemplateNodeImpl unclosed = result.get(openBlocks.get(openBlocks.size() - 1));
+      throwParserException("Opening " + BLOCK_PLACEHOLDER_OPEN_SYMBOL + unclosed.getText() +
+                           BLOCK_PLACEHOLDER_CLOSE_SYMBOL + " detected with no closing " +
+                           BLOCK_PLACEHOLDER_OPEN_SYMBOL + BLOCK_END_PREFIX + unclosed.getText() +
+                           BLOCK_PLACEHOLDER_CLOSE_SYMBOL, unclosed.getLocation());
+    }
+    return result.toArray(new TextTemplateNode[result.size()]);
+  }
+
+  private static void checkPlaceholderChar(char[] chars, int index, boolean block) throws TextTemplateParserException
+  {
+    final char c = chars[index];
+    if (c == '\n') {
+      throwParserException((block ? "Block" : "Value") + " Placeholders may not contain linefeeds", index);
+    }
+    if (block && c == VALUE_PLACEHOLDER_CHAR) {
+      throwParserException("Block placeholders may not contain '" + VALUE_PLACEHOLDER_SYMBOL + '\'', index);
+    }
+    if (c == BLOCK_PLACEHOLDER_OPEN_CHAR || c == BLOCK_PLACEHOLDER_CLOSE_CHAR || c == ESCAPE_CHAR) {
+      throwParserException("Placeholders may not contain '" + c + '\'', index);
+    }
+  }
+
+  /**
+   * Links a block placeholder node to its counterpart.  Opening nodes are pushed until their closing node (named
+   * {@link #BLOCK_END_PREFIX} + the opening name) is found; blocks may nest but not overlap.
+   */
+  private static void matchBlock(TextTemplateNodeImpl node, int index, List<TextTemplateNodeImpl> nodes,
+                                 List<Integer> openBlocks) throws TextTemplateParserException
+  {
+    final String name = node.getText();
+    if (name.startsWith(BLOCK_END_PREFIX)) {
+      final String openName = name.substring(BLOCK_END_PREFIX.length());
+      if (openBlocks.isEmpty()) {
+        throwParserException("Closing " + BLOCK_PLACEHOLDER_OPEN_SYMBOL + name + BLOCK_PLACEHOLDER_CLOSE_SYMBOL +
+                             " detected with no opening " + BLOCK_PLACEHOLDER_OPEN_SYMBOL + openName +
+                             BLOCK_PLACEHOLDER_CLOSE_SYMBOL, node.getLocation());
+      }
+      final int openIndex = openBlocks.remove(openBlocks.size() - 1);
+      final TextTemplateNodeImpl open = nodes.get(openIndex);
+      if (!open.getText().equals(openName)) {
+        throwParserException("Closing " + BLOCK_PLACEHOLDER_OPEN_SYMBOL + name + BLOCK_PLACEHOLDER_CLOSE_SYMBOL +
+                             " detected while expecting " + BLOCK_PLACEHOLDER_OPEN_SYMBOL + BLOCK_END_PREFIX +
+                             open.getText() + BLOCK_PLACEHOLDER_CLOSE_SYMBOL, node.getLocation());
+      }
+      open._matchingNodeIndex = index;
+      node._matchingNodeIndex = openIndex;
+    } else {
+      openBlocks.add(index);
+    }
+  }
+
+  private static void flushTextNode(List<TextTemplateNodeImpl> result, StringBuilder text, int location)
+  {
+    if (text.length() > 0) {
+      result.add(new TextTemplateNodeImpl(TextTemplateNodeType.TEXT_NODE, text.toString(), location));
+      text.setLength(0);
     }
   }
 
-  private static void throwParserException(String message, int tokenLocation) throws TextTemplateParserException
+  private static boolean isSymbol(char c)
+  {
+    return c == VALUE_PLACEHOLDER_CHAR || c == BLOCK_PLACEHOLDER_OPEN_CHAR || c == BLOCK_PLACEHOLDER_CLOSE_CHAR ||
+           c == ESCAPE_CHAR;
+  }
+
+  static void throwParserException(String message, int tokenLocation) throws TextTemplateParserException
   {
     throw new TextTemplateParserException("Illegal text template - error at index " + tokenLocation + " : " + message,
                                           tokenLocation);
@@ -144,10 +193,9 @@ public class CommitLogTemplateParser
   {
     System.out.println("Testing input : " + text);
     try {
-      Iterator result = parseTextTemplate(text).iterator();
+      TextTemplateNode[] result = parseTextTemplate(text);
       System.out.println("Results : ");
-      while (result.hasNext()) {
-        TextTemplateNode node = (TextTemplateNode)result.next();
+      for (TextTemplateNode node : result) {
         System.out.println("Node of type " + node.getType() + " with text : " + node.getText() + "#END#");
       }
     } catch (TextTemplateParserException e) {
@@ -155,33 +203,45 @@ public class CommitLogTemplateParser
     }
   }
 
-  protected CommitLogTemplateParser.TextTemplateNode createTextTemplateNode(final TextTemplateNodeType type,
-                                                                            final String text,
-                                                                            final int location)
+  private static final class TextTemplateNodeImpl implements TextTemplateNode
   {
-    return new CommitLogTemplateParser.TextTemplateNode()
+    private final TextTemplateNodeType _type;
+    private final String _text;
+    private final int _location;
+    private int _matchingNodeIndex = -1;
+
+    private TextTemplateNodeImpl(TextTemplateNodeType type, String text, int location)
     {
-      public TextTemplateNodeType getType()
-      {
-        return type;
-      }
+      _type = type;
+      _text = text;
+      _location = location;
+    }
 
-      public String getText()
-      {
-        return text;
-      }
+    public TextTemplateNodeType getType()
+    {
+      return _type;
+    }
 
-      @Override
-      public String toString()
-      {
-        return text;
-      }
+    public String getText()
+    {
+      return _text;
+    }
 
-      public int getLocation()
-      {
-        return location;
-      }
-    };
+    public int getLocation()
+    {
+      return _location;
+    }
+
+    public int getMatchingNodeIndex()
+    {
+      return _matchingNodeIndex;
+    }
+
+    @Override
+    public String toString()
+    {
+      return _text;
+    }
   }
 
   enum TextTemplateNodeType
@@ -213,6 +273,14 @@ public class CommitLogTemplateParser
      * @return the location of the node in the text
      */
     int getLocation();
+
+    /**
+     * Returns the index of the node that closes this block placeholder, or for a closing block placeholder, the index
+     * of the node that opened it.
+     *
+     * @return the index of the matching block placeholder node, or -1 if this is not a block placeholder node.
+     */
+    int getMatchingNodeIndex();
   }
 
   public static class TextTemplateParserException extends Exception
@@ -18,8 +18,6 @@ package com.anecdote.ideaplugins.commitlog;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.*;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.IconLoader;
@@ -27,12 +25,20 @@ import com.intellij.openapi.wm.*;
 import com.intellij.ui.content.*;
 
 import javax.swing.*;
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.*;
 
 public class CommitLogWindow
 {
   private Project _project;
-  private Set<Editor> _commitLogs = new HashSet<Editor>();
+  private final CommitLogProjectComponent _projectComponent;
+  // the open commit logs by tab, least recently selected first
+  private final Map<Content, CommitLogTab> _commitLogs = new LinkedHashMap<Content, CommitLogTab>(16, 0.75f, true);
+  // the commit logs evicted from their tabs, oldest first
+  private final LinkedList<CommitLogTab> _evictedCommitLogs = new LinkedList<CommitLogTab>();
+  private Timer _editorReleaseTimer;
   //    private Editor _output = null;
   //    private ErrorTreeView myErrorsView;
   private boolean _isInitialized, _isDisposed;
@@ -42,19 +48,28 @@ public class CommitLogWindow
   private static final String COMMIT_LOGS_TOOLWINDOW_ID = "Commit Logs";
   private static final String COMMIT_LOGS_SMALL_ICON_NAME = "/resources/commitlogsmall.png";
   private static final Icon COMMIT_LOGS_SMALL_ICON = IconLoader.getIcon(COMMIT_LOGS_SMALL_ICON_NAME);
+  private static final int MAX_EVICTED_COMMIT_LOGS = 100;
+  private static final String SEARCH_TAB_TITLE = "Search";
+  // how long a tab stays hidden before its editor is released
+  private static final int EDITOR_RELEASE_DELAY = 60 * 1000;
 
-  public CommitLogWindow(Project project)
+  public CommitLogWindow(CommitLogProjectComponent projectComponent)
   {
-    _project = project;
-    Disposer.register(project, new Disposable()
+    _projectComponent = projectComponent;
+    _project = projectComponent.getProject();
+    Disposer.register(_project, new Disposable()
     {
       public void dispose()
       {
         try {
-          for (Editor commitLog : _commitLogs) {
-            EditorFactory.getInstance().releaseEditor(commitLog);
+          if (_editorReleaseTimer != null) {
+            _editorReleaseTimer.stop();
+          }
+          for (CommitLogTab commitLog : _commitLogs.values()) {
+            commitLog.release();
           }
           _commitLogs.clear();
+          _evictedCommitLogs.clear();
           CommitLogWindow.LOG.assertTrue(!_isDisposed);
           if (!_isInitialized) {
             _isDisposed = true;
@@ -86,23 +101,38 @@ public class CommitLogWindow
         @Override
         public void contentRemoved(ContentManagerEvent event)
         {
-          JComponent component = event.getContent().getComponent();
-          JComponent removedComponent = (component instanceof CommitLogWindowComponent) ?
-                                        ((CommitLogWindowComponent)component).getComponent() :
-                                        component;
 //                    if (removedComponent == myErrorsView) {
 //                        myErrorsView.dispose();
 //                        myErrorsView = null;
 //                    } else
-          for (Iterator iterator = _commitLogs.iterator(); iterator.hasNext();) {
-            Editor editor = (Editor)iterator.next();
-            if (removedComponent == editor.getComponent()) {
-              EditorFactory.getInstance().releaseEditor(editor);
-              iterator.remove();
-            }
+          CommitLogTab commitLog = _commitLogs.remove(event.getContent());
+          if (commitLog != null) {
+            commitLog.release();
+          }
+        }
+
+        @Override
+        public void selectionChanged(ContentManagerEvent event)
+        {
+          // getting the selected commit log makes it the last to be evicted.  Its editor is created by the tab itself
+          // once it is on screen, which it is not while the tool window is hidden
+          Content selectedContent = _contentManager.getSelectedContent();
+          if (selectedContent != null) {
+            _commitLogs.get(selectedContent);
           }
         }
       });
+      _editorReleaseTimer = new Timer(EDITOR_RELEASE_DELAY / 2, new ActionListener()
+      {
+        public void actionPerformed(ActionEvent e)
+        {
+          long hiddenSince = System.currentTimeMillis() - EDITOR_RELEASE_DELAY;
+          for (CommitLogTab commitLog : _commitLogs.values()) {
+            commitLog.releaseIfHiddenSince(hiddenSince);
+          }
+        }
+      });
+      _editorReleaseTimer.start();
 //      final JComponent component = _contentManager.getComponent();
     }
   }
@@ -160,40 +190,137 @@ public class CommitLogWindow
 
   private static class CopyContentAction extends AnAction
   {
-    private final Editor _commitLog;
+    private final CommitLogTab _commitLog;
 
     @Override
     public void actionPerformed(AnActionEvent e)
     {
-      final boolean hasSelection = _commitLog.getSelectionModel().hasSelection();
-      if (!hasSelection) {
-        _commitLog.getSelectionModel().setSelection(0, _commitLog.getDocument().getCharsSequence().length() - 1);
-      }
-      _commitLog.getSelectionModel().copySelectionToClipboard();
-      if (!hasSelection) {
-        _commitLog.getSelectionModel().removeSelection();
-      }
+      _commitLog.copyToClipboard();
     }
 
-    public CopyContentAction(Editor commitLog)
+    public CopyContentAction(CommitLogTab commitLog)
     {
       super("Copy", "Copy content to clipboard", IconLoader.getIcon("/actions/copy.png"));
       _commitLog = commitLog;
     }
   }
 
-  public Editor addCommitLog(String title, Editor commitLog)
+  private class ReopenCommitLogGroup extends ActionGroup
+  {
+    public ReopenCommitLogGroup()
+    {
+      super("Reopen", true);
+      getTemplatePresentation().setDescription("Reopen a commit log closed to make room for newer ones");
+      getTemplatePresentation().setIcon(IconLoader.getIcon("/actions/back.png"));
+    }
+
+    @Override
+    public void update(AnActionEvent e)
+    {
+      e.getPresentation().setEnabled(!_evictedCommitLogs.isEmpty());
+    }
+
+    @Override
+    public AnAction[] getChildren(AnActionEvent e)
+    {
+      List<AnAction> result = new ArrayList<AnAction>(_evictedCommitLogs.size());
+      for (Iterator<CommitLogTab> iterator = _evictedCommitLogs.descendingIterator(); iterator.hasNext();) {
+        final CommitLogTab evictedCommitLog = iterator.next();
+        result.add(new AnAction(evictedCommitLog.getTitle())
+        {
+          @Override
+          public void actionPerformed(AnActionEvent e)
+          {
+            if (_evictedCommitLogs.remove(evictedCommitLog)) {
+              addCommitLog(evictedCommitLog);
+            }
+          }
+        });
+      }
+      return result.toArray(new AnAction[result.size()]);
+    }
+  }
+
+  /**
+   * Shows the tab searching the archived commit logs, creating it if need be.
+   */
+  public void showSearch()
+  {
+    int existing = getComponentNumNamed(SEARCH_TAB_TITLE);
+    if (existing != -1) {
+      getContentManager().setSelectedContent(getContentManager().getContent(existing));
+    } else {
+      addTab(SEARCH_TAB_TITLE, new CommitLogSearchPanel(_projectComponent), true, false, false, true, null,
+             COMMIT_LOG_HELP_ID);
+    }
+  }
+
+  /**
+   * Shows the given commit log in a new tab, closing the least recently selected tabs beyond the configured maximum.
+   * Pinned tabs are never closed this way, and the text of the closed tabs is kept so that they can be reopened.  The
+   * editor showing the log is only created once its tab is selected and the tool window is visible.  A title already
+   * shown by another tab is numbered, as in "Commit Log (2)".
+   */
+  public void addCommitLog(String title, CharSequence text)
+  {
+    CommitLogCompressor compressor = _projectComponent.getCommitLogCompressor();
+    addCommitLog(title, compressor.compress(text), compressor);
+  }
+
+  /**
+   * Shows a commit log already compressed, such as by the task that generated it, so that a long log is not compressed
+   * on the event dispatch thread.
+   */
+  public void addCommitLog(String title, byte[] compressedText, CommitLogCompressor compressor)
+  {
+    addCommitLog(new CommitLogTab(_project, title, compressedText, compressor));
+  }
+
+  private void addCommitLog(CommitLogTab commitLog)
+  {
+    DefaultActionGroup actions = new DefaultActionGroup();
+    actions.add(new CopyContentAction(commitLog));
+    actions.add(new ReopenCommitLogGroup());
+    actions.add(new SearchCommitLogsAction());
+    int index = addTab(getUnusedTitle(commitLog.getTitle()), commitLog.getComponent(), true, false, true, true,
+                       actions, COMMIT_LOG_HELP_ID);
+    _commitLogs.put(getContentManager().getContent(index), commitLog);
+    evictCommitLogs();
+  }
+
+  private String getUnusedTitle(String title)
+  {
+    String result = title;
+    for (int i = 2; getComponentNumNamed(result) != -1; i++) {
+      result = title + " (" + i + ')';
+    }
+    return result;
+  }
+
+  private void evictCommitLogs()
   {
-    boolean notExist = !_commitLogs.contains(commitLog);
-    LOG.assertTrue(notExist);
-    //noinspection ConstantConditions
-    if (notExist) {
-      DefaultActionGroup actions = new DefaultActionGroup();
-      actions.add(new CopyContentAction(commitLog));
-      addTab(title, commitLog.getComponent(), true, false, false, true, actions, COMMIT_LOG_HELP_ID);
-      _commitLogs.add(commitLog);
-    }
-    return commitLog;
+    int excess = _commitLogs.size() - _projectComponent.getMaxCommitLogTabs();
+    if (excess <= 0) {
+      return;
+    }
+    Content selectedContent = getContentManager().getSelectedContent();
+    List<Content> evicted = new ArrayList<Content>(excess);
+    for (Content content : _commitLogs.keySet()) {
+      if (evicted.size() == excess) {
+        break;
+      }
+      if (!content.isPinned() && content != selectedContent) {
+        evicted.add(content);
+      }
+    }
+    for (Content content : evicted) {
+      _evictedCommitLogs.add(_commitLogs.get(content));
+      if (_evictedCommitLogs.size() > MAX_EVICTED_COMMIT_LOGS) {
+        _evictedCommitLogs.removeFirst();
+      }
+      // releases the editor
+      getContentManager().removeContent(content, true);
+    }
   }
 
 //    public ErrorTreeView addErrorsTreeView(ErrorTreeView view) {
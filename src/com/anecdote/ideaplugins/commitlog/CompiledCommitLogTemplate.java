@@ -0,0 +1,171 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * An immutable, parsed form of a textual commit log template.  Instances are safe to share between threads and are
+ * cached by {@link CommitLogProjectComponent} so that the template text is only parsed when it changes.
+ */
+class CompiledCommitLogTemplate
+{
+  private final String _templateText;
+  private final String[] _texts;
+  private final CommitLogPlaceholder[] _placeholders;
+  private final int[] _blockEnds;
+  private final Set<CommitLogEntry.Attribute> _requiredAttributes;
+
+  private CompiledCommitLogTemplate(String templateText, String[] texts, CommitLogPlaceholder[] placeholders,
+                                    int[] blockEnds, Set<CommitLogEntry.Attribute> requiredAttributes)
+  {
+    _templateText = templateText;
+    _texts = texts;
+    _placeholders = placeholders;
+    _blockEnds = blockEnds;
+    _requiredAttributes = Collections.unmodifiableSet(requiredAttributes);
+  }
+
+  /**
+   * Parses the given template text and binds each of its placeholders to a {@link CommitLogPlaceholder}, checking
+   * that every placeholder is known and is used in a part of the template where it has a meaning.
+   */
+  @NotNull
+  static CompiledCommitLogTemplate compile(@NotNull String templateText)
+    throws CommitLogTemplateParser.TextTemplateParserException
+  {
+    final CommitLogTemplateParser.TextTemplateNode[] nodes =
+      new CommitLogTemplateParser().parseTextTemplate(templateText);
+    if (nodes.length == 0) {
+      CommitLogProjectComponent.log("ERROR : Parsed template is empty!");
+    }
+    final String[] texts = new String[nodes.length];
+    final CommitLogPlaceholder[] placeholders = new CommitLogPlaceholder[nodes.length];
+    final int[] blockEnds = new int[nodes.length];
+    final Set<CommitLogEntry.Attribute> requiredAttributes = EnumSet.noneOf(CommitLogEntry.Attribute.class);
+    final List<CommitLogPlaceholder.Scope> scopes = new ArrayList<CommitLogPlaceholder.Scope>();
+    scopes.add(CommitLogPlaceholder.Scope.TEMPLATE);
+    for (int i = 0; i < nodes.length; i++) {
+      final CommitLogTemplateParser.TextTemplateNode node = nodes[i];
+      texts[i] = node.getText();
+      blockEnds[i] = -1;
+      final CommitLogTemplateParser.TextTemplateNodeType type = node.getType();
+      if (type == CommitLogTemplateParser.TextTemplateNodeType.TEXT_NODE) {
+        continue;
+      }
+      final boolean block = type == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE;
+      if (block && node.getMatchingNodeIndex() < i) {
+        // closing node - the content of the block has been checked
+        scopes.remove(scopes.size() - 1);
+        continue;
+      }
+      final CommitLogPlaceholder placeholder = bindPlaceholder(node, block, scopes.get(scopes.size() - 1));
+      placeholders[i] = placeholder;
+      requiredAttributes.addAll(placeholder.getRequiredAttributes());
+      if (block) {
+        blockEnds[i] = node.getMatchingNodeIndex();
+        scopes.add(placeholder.getBlockScope());
+      }
+    }
+    return new CompiledCommitLogTemplate(templateText, texts, placeholders, blockEnds, requiredAttributes);
+  }
+
+  @NotNull
+  private static CommitLogPlaceholder bindPlaceholder(CommitLogTemplateParser.TextTemplateNode node, boolean block,
+                                                      CommitLogPlaceholder.Scope scope)
+    throws CommitLogTemplateParser.TextTemplateParserException
+  {
+    final String name = node.getText();
+    final String displayName = block ? CommitLogTemplateParser.BLOCK_PLACEHOLDER_OPEN_SYMBOL + name +
+                                       CommitLogTemplateParser.BLOCK_PLACEHOLDER_CLOSE_SYMBOL :
+                               CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL + name +
+                               CommitLogTemplateParser.VALUE_PLACEHOLDER_SYMBOL;
+    final CommitLogPlaceholder placeholder = CommitLogPlaceholder.forName(name);
+    if (placeholder == null || placeholder.isBlock() != block) {
+      CommitLogTemplateParser.throwParserException("Unknown placeholder " + displayName, node.getLocation());
+    } else if (!placeholder.isValidIn(scope)) {
+      CommitLogTemplateParser.throwParserException("Placeholder " + displayName + " may not be used in " +
+                                                   getScopeDescription(scope), node.getLocation());
+    }
+    return placeholder;
+  }
+
+  private static String getScopeDescription(CommitLogPlaceholder.Scope scope)
+  {
+    switch (scope) {
+      case TEMPLATE:
+        return "the top level of the template";
+      case FILES_SECTION:
+        return "a [*_FILES] block outside a [FILE_ENTRY] block";
+      default:
+        return "a [" + scope.name() + "] block";
+    }
+  }
+
+  public String getTemplateText()
+  {
+    return _templateText;
+  }
+
+  /**
+   * @return the entry attributes used by this template.  Attributes that are not used need not be collected.
+   */
+  Set<CommitLogEntry.Attribute> getRequiredAttributes()
+  {
+    return _requiredAttributes;
+  }
+
+  boolean requires(CommitLogEntry.Attribute attribute)
+  {
+    return _requiredAttributes.contains(attribute);
+  }
+
+  /**
+   * @return the number of nodes in the compiled template.
+   */
+  int getNodeCount()
+  {
+    return _texts.length;
+  }
+
+  /**
+   * @return the literal text of the node, or for a placeholder node, the name of the placeholder.
+   */
+  String getText(int node)
+  {
+    return _texts[node];
+  }
+
+  /**
+   * @return the placeholder bound to the node, or null if the node is literal text or closes a block.
+   */
+  @Nullable
+  CommitLogPlaceholder getPlaceholder(int node)
+  {
+    return _placeholders[node];
+  }
+
+  /**
+   * @return for a block placeholder node, the index of the node that closes the block.
+   */
+  int getBlockEnd(int node)
+  {
+    return _blockEnds[node];
+  }
+}
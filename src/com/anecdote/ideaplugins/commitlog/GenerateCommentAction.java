@@ -25,7 +25,6 @@ import com.intellij.openapi.vcs.*;
 import com.intellij.openapi.vcs.changes.*;
 
 import javax.swing.*;
-import java.io.File;
 import java.util.*;
 
 class GenerateCommentAction extends AnAction
@@ -80,26 +79,25 @@ class GenerateCommentAction extends AnAction
         if (confirmation == 0) {
           CommitLogProjectComponent projectComponent = project.getComponent(CommitLogProjectComponent.class);
           String commitMessage;
-          Collection<File> files;
+          Collection<Change> changes;
+          String changeListName = null;
           if (panel != null) {
             commitMessage = panel.getCommitMessage();
-            files = panel.getFiles();
+            changes = panel.getSelectedChanges();
           } else {
             commitMessage = commentEditor.getText();
             LocalChangeList changeList = e.getData(SELECTED_CHANGE_LIST_DATA_KEY);
             if (changeList == null) {
               return;
             }
-            ProjectLevelVcsManager vcsManager = ProjectLevelVcsManager.getInstance(project);
-            files = new HashSet<File>();
-            for (Change change : changeList.getChanges()) {
-              FilePath filepath = ChangesUtil.getFilePath(change);
-              files.add(filepath.getIOFile());
-            }
+            changes = changeList.getChanges();
+            changeListName = changeList.getName();
           }
-          CommitLogBuilder commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(
-            projectComponent.getTextualCommitCommentTemplate(), commitMessage, project, files);
           try {
+            CompiledCommitLogTemplate template = projectComponent.getCompiledCommitCommentTemplate();
+            CommitLogBuilder commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(
+              template, commitMessage, project, changes, changeListName, projectComponent.getDirectoryCache(template));
+            projectComponent.setIssueIdMatcher(commitLogBuilder);
             String commitLog = commitLogBuilder.buildCommitLog(new Date());
             if (panel != null) {
               panel.setCommitMessage(commitLog);
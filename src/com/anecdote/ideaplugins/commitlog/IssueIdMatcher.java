@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Finds issue ids in text, an issue id being one of a set of prefixes, such as "PROJ-" or "BUG #", followed by a
+ * number.  Prefixes are matched regardless of case, but reported as configured, and an id must not be run into the
+ * words either side of it.
+ * <p/>
+ * The prefixes are compiled once into an Aho-Corasick automaton, so that text is scanned for all of them in a single
+ * pass, whatever the number of prefixes, rather than once per prefix.
+ */
+class IssueIdMatcher
+{
+  private static final char[] NO_LABELS = new char[0];
+  private static final int[] NO_TARGETS = new int[0];
+
+  private final String[] _prefixes;
+  // the transitions of each state, by upper case character, with labels sorted for binary search
+  private final char[][] _labels;
+  private final int[][] _targets;
+  private final int[] _failures;
+  // the longest prefix ending at each state, and the next state along the failure links at which one ends, or -1
+  private final int[] _prefixAt;
+  private final int[] _outputs;
+
+  private IssueIdMatcher(String[] prefixes, char[][] labels, int[][] targets, int[] failures, int[] prefixAt,
+                         int[] outputs)
+  {
+    _prefixes = prefixes;
+    _labels = labels;
+    _targets = targets;
+    _failures = failures;
+    _prefixAt = prefixAt;
+    _outputs = outputs;
+  }
+
+  /**
+   * Compiles the prefixes listed in the given text, separated by commas.  Whitespace around each prefix is ignored.
+   *
+   * @return the matcher, or null if no prefixes are listed.
+   */
+  @Nullable
+  static IssueIdMatcher compile(@Nullable String prefixList)
+  {
+    if (prefixList == null) {
+      return null;
+    }
+    final Set<String> prefixes = new LinkedHashSet<String>();
+    for (final String prefix : prefixList.split(",")) {
+      if (prefix.trim().length() > 0) {
+        prefixes.add(prefix.trim());
+      }
+    }
+    return prefixes.isEmpty() ? null : compile(prefixes.toArray(new String[prefixes.size()]));
+  }
+
+  private static IssueIdMatcher compile(String[] prefixes)
+  {
+    // build the trie
+    final List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+    final List<Integer> prefixAt = new ArrayList<Integer>();
+    trie.add(new TreeMap<Character, Integer>());
+    prefixAt.add(-1);
+    for (int i = 0; i < prefixes.length; i++) {
+      int state = 0;
+      for (int j = 0; j < prefixes[i].length(); j++) {
+        final char c = Character.toUpperCase(prefixes[i].charAt(j));
+        Integer next = trie.get(state).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.add(new TreeMap<Character, Integer>());
+          prefixAt.add(-1);
+          trie.get(state).put(c, next);
+        }
+        state = next;
+      }
+      if (prefixAt.get(state) < 0) {
+        prefixAt.set(state, i);
+      }
+    }
+    final int stateCount = trie.size();
+    final char[][] labels = new char[stateCount][];
+    final int[][] targets = new int[stateCount][];
+    final int[] prefixIndexes = new int[stateCount];
+    for (int state = 0; state < stateCount; state++) {
+      final TreeMap<Character, Integer> transitions = trie.get(state);
+      labels[state] = transitions.isEmpty() ? NO_LABELS : new char[transitions.size()];
+      targets[state] = transitions.isEmpty() ? NO_TARGETS : new int[transitions.size()];
+      int i = 0;
+      for (final Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+        labels[state][i] = transition.getKey();
+        targets[state][i++] = transition.getValue();
+      }
+      prefixIndexes[state] = prefixAt.get(state);
+    }
+    // link each state to the state of its longest proper suffix in the trie, breadth first so that shorter states are
+    // linked first
+    final int[] failures = new int[stateCount];
+    final int[] outputs = new int[stateCount];
+    outputs[0] = -1;
+    final LinkedList<Integer> queue = new LinkedList<Integer>();
+    for (final int target : targets[0]) {
+      failures[target] = 0;
+      outputs[target] = -1;
+      queue.add(target);
+    }
+    while (!queue.isEmpty()) {
+      final int state = queue.removeFirst();
+      for (int i = 0; i < labels[state].length; i++) {
+        final int target = targets[state][i];
+        int failure = failures[state];
+        int next;
+        while ((next = find(labels, targets, failure, labels[state][i])) < 0 && failure != 0) {
+          failure = failures[failure];
+        }
+        failures[target] = next >= 0 ? next : 0;
+        outputs[target] = prefixIndexes[failures[target]] >= 0 ? failures[target] : outputs[failures[target]];
+        queue.add(target);
+      }
+    }
+    return new IssueIdMatcher(prefixes.clone(), labels, targets, failures, prefixIndexes, outputs);
+  }
+
+  private static int find(char[][] labels, int[][] targets, int state, char c)
+  {
+    final int i = Arrays.binarySearch(labels[state], c);
+    return i >= 0 ? targets[state][i] : -1;
+  }
+
+  /**
+   * Adds the issue ids found in the given text to the given collection, in the order found.  Where prefixes overlap,
+   * the longest is taken.
+   */
+  void findIssueIds(@Nullable CharSequence text, Collection<String> result)
+  {
+    if (text == null) {
+      return;
+    }
+    int state = 0;
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      final char c = Character.toUpperCase(text.charAt(i));
+      int next;
+      while ((next = find(_labels, _targets, state, c)) < 0 && state != 0) {
+        state = _failures[state];
+      }
+      state = next >= 0 ? next : 0;
+      if (i + 1 < length && isDigit(text.charAt(i + 1))) {
+        // try the prefixes ending here, longest first, as the start of an id
+        for (int output = _prefixAt[state] >= 0 ? state : _outputs[state]; output >= 0; output = _outputs[output]) {
+          final String prefix = _prefixes[_prefixAt[output]];
+          final int start = i + 1 - prefix.length();
+          if (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1))) {
+            int end = i + 1;
+            while (end < length && isDigit(text.charAt(end))) {
+              end++;
+            }
+            if (end == length || !Character.isLetterOrDigit(text.charAt(end))) {
+              result.add(prefix + text.subSequence(i + 1, end));
+            }
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isDigit(char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.application.ApplicationManager;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A stable merge sort that sorts large arrays on several pooled threads.  The array is split into one run per thread,
+ * the runs are sorted in parallel, and then merged in pairs, with the merges of each pass also run in parallel.
+ */
+class ParallelSort
+{
+  /**
+   * The smallest run worth sorting on a thread of its own.
+   */
+  private static final int MIN_RUN_LENGTH = 4096;
+
+  private ParallelSort()
+  {
+  }
+
+  static <T extends Comparable<? super T>> void sort(final T[] array)
+  {
+    final int runCount = Math.min(Runtime.getRuntime().availableProcessors(), array.length / MIN_RUN_LENGTH);
+    if (runCount < 2) {
+      Arrays.sort(array);
+      return;
+    }
+    final int[] bounds = new int[runCount + 1];
+    for (int i = 0; i <= runCount; i++) {
+      bounds[i] = (int)((long)array.length * i / runCount);
+    }
+    final List<Runnable> sorts = new ArrayList<Runnable>(runCount);
+    for (int i = 0; i < runCount; i++) {
+      final int from = bounds[i];
+      final int to = bounds[i + 1];
+      sorts.add(new Runnable()
+      {
+        public void run()
+        {
+          Arrays.sort(array, from, to);
+        }
+      });
+    }
+    runInParallel(sorts);
+    T[] source = array;
+    T[] target = array.clone();
+    for (int width = 1; width < runCount; width *= 2) {
+      final List<Runnable> merges = new ArrayList<Runnable>();
+      for (int i = 0; i < runCount; i += width * 2) {
+        final int from = bounds[i];
+        final int middle = bounds[Math.min(i + width, runCount)];
+        final int to = bounds[Math.min(i + width * 2, runCount)];
+        final T[] finalSource = source;
+        final T[] finalTarget = target;
+        merges.add(new Runnable()
+        {
+          public void run()
+          {
+            merge(finalSource, from, middle, to, finalTarget);
+          }
+        });
+      }
+      runInParallel(merges);
+      final T[] merged = target;
+      target = source;
+      source = merged;
+    }
+    if (source != array) {
+      System.arraycopy(source, 0, array, 0, array.length);
+    }
+  }
+
+  /**
+   * Merges the sorted runs [from, middle) and [middle, to) of the source into the same range of the target, taking
+   * equal elements from the first run first.
+   */
+  private static <T extends Comparable<? super T>> void merge(T[] source, int from, int middle, int to, T[] target)
+  {
+    int left = from;
+    int right = middle;
+    for (int i = from; i < to; i++) {
+      if (right >= to || left < middle && source[left].compareTo(source[right]) <= 0) {
+        target[i] = source[left++];
+      } else {
+        target[i] = source[right++];
+      }
+    }
+  }
+
+  /**
+   * Runs the first task on the calling thread and the others on pooled threads, returning when all have finished.
+   */
+  private static void runInParallel(List<Runnable> tasks)
+  {
+    final List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+    for (int i = 1; i < tasks.size(); i++) {
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(tasks.get(i)));
+    }
+    tasks.get(0).run();
+    for (final Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+}
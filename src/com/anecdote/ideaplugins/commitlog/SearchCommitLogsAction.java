@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 Nathan Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.IconLoader;
+
+/**
+ * Opens the search of the archived commit logs in the commit log window.
+ */
+class SearchCommitLogsAction extends AnAction
+{
+  SearchCommitLogsAction()
+  {
+    super("Search Commit Logs", "Search the commit logs generated for this project",
+          IconLoader.getIcon("/actions/find.png"));
+  }
+
+  @Override
+  public void update(AnActionEvent e)
+  {
+    e.getPresentation().setEnabled(DataKeys.PROJECT.getData(e.getDataContext()) != null);
+  }
+
+  @Override
+  public void actionPerformed(AnActionEvent e)
+  {
+    Project project = DataKeys.PROJECT.getData(e.getDataContext());
+    if (project != null) {
+      CommitLogWindow window = project.getComponent(CommitLogProjectComponent.class).getCommitLogWindow();
+      window.showSearch();
+      window.ensureVisible(project);
+    }
+  }
+}